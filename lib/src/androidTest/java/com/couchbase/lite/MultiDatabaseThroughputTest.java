@@ -0,0 +1,138 @@
+//
+// Copyright (c) 2020 Couchbase, Inc All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.couchbase.lite;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.couchbase.lite.utils.Report;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Several databases, each with a writer and a change listener, sharing the serial executors' thread pool.
+ * Every listener must see every change, and no database may be starved by the others.
+ */
+public class MultiDatabaseThroughputTest extends PlatformBaseTest {
+    private static final int DATABASES = 8;
+    private static final int DOCS_PER_DATABASE = 500;
+    private static final long TIMEOUT_SECS = 120;
+
+    private final List<Database> databases = new ArrayList<>();
+    private String dbDir;
+
+    @Before
+    @Override
+    public void setUp() throws CouchbaseLiteException {
+        super.setUp();
+        dbDir = getScratchDirectoryPath("throughput-" + System.currentTimeMillis());
+        for (int i = 0; i < DATABASES; i++) {
+            databases.add(new Database("db" + i, new DatabaseConfiguration().setDirectory(dbDir)));
+        }
+    }
+
+    @After
+    @Override
+    public void tearDown() {
+        for (Database db: databases) {
+            try { db.delete(); }
+            catch (CouchbaseLiteException e) { Report.log(LogLevel.WARNING, "Failed deleting database", e); }
+        }
+        deleteRecursive(new File(dbDir));
+        super.tearDown();
+    }
+
+    @Test
+    public void testConcurrentSavesAndListeners() throws InterruptedException {
+        final AtomicInteger[] changes = new AtomicInteger[DATABASES];
+        final CountDownLatch allChanged = new CountDownLatch(DATABASES);
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch saved = new CountDownLatch(DATABASES);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final long[] finishedAt = new long[DATABASES];
+
+        for (int i = 0; i < DATABASES; i++) {
+            final int dbIndex = i;
+            changes[i] = new AtomicInteger(0);
+            databases.get(i).addChangeListener(change -> {
+                final int n = changes[dbIndex].addAndGet(change.getDocumentIDs().size());
+                if (n == DOCS_PER_DATABASE) {
+                    finishedAt[dbIndex] = System.nanoTime();
+                    allChanged.countDown();
+                }
+            });
+        }
+
+        for (int i = 0; i < DATABASES; i++) {
+            final Database db = databases.get(i);
+            final Thread writer = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int j = 0; j < DOCS_PER_DATABASE; j++) {
+                        db.save(new MutableDocument("doc-" + j).setInt("n", j).setString("db", db.getName()));
+                    }
+                }
+                catch (CouchbaseLiteException | InterruptedException | RuntimeException e) { failure.set(e); }
+                finally { saved.countDown(); }
+            });
+            writer.start();
+        }
+
+        final long startedAt = System.nanoTime();
+        start.countDown();
+
+        assertTrue(saved.await(TIMEOUT_SECS, TimeUnit.SECONDS));
+        assertNull(failure.get());
+        assertTrue(allChanged.await(TIMEOUT_SECS, TimeUnit.SECONDS));
+
+        final long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+        long slowestMs = 0;
+        for (int i = 0; i < DATABASES; i++) {
+            assertEquals(DOCS_PER_DATABASE, changes[i].get());
+            assertEquals(DOCS_PER_DATABASE, databases.get(i).getCount());
+            slowestMs = Math.max(slowestMs, TimeUnit.NANOSECONDS.toMillis(finishedAt[i] - startedAt));
+        }
+
+        Report.log(
+            LogLevel.INFO,
+            "%d databases, %d saves each: %d ms (%d saves/s), slowest database notified after %d ms",
+            DATABASES,
+            DOCS_PER_DATABASE,
+            elapsedMs,
+            (DATABASES * DOCS_PER_DATABASE * 1000L) / Math.max(1, elapsedMs),
+            slowestMs);
+    }
+
+    private static void deleteRecursive(File file) {
+        final File[] files = file.listFiles();
+        if (files != null) {
+            for (File f: files) { deleteRecursive(f); }
+        }
+        if (!file.delete()) { Report.log(LogLevel.WARNING, "Failed deleting " + file); }
+    }
+}
@@ -99,7 +99,7 @@ public abstract class PlatformBaseTest implements PlatformTest {
 
     @Override
     public void reloadStandardErrorMessages() {
-        Log.initLogging(CouchbaseLiteInternal.loadErrorMessages(InstrumentationRegistry.getTargetContext()));
+        Log.initLogging(CouchbaseLiteInternal.loadErrorMessages());
 
     }
 
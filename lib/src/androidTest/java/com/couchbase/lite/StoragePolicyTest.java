@@ -0,0 +1,126 @@
+//
+// Copyright (c) 2020 Couchbase, Inc All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.couchbase.lite;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.couchbase.lite.internal.CouchbaseLiteInternal;
+import com.couchbase.lite.utils.Report;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class StoragePolicyTest extends PlatformBaseTest {
+    private File rootDir;
+    private StoragePolicy policy;
+
+    @Before
+    @Override
+    public void setUp() throws CouchbaseLiteException {
+        super.setUp();
+        rootDir = new File(getScratchDirectoryPath("storage-" + System.currentTimeMillis()));
+        policy = new StoragePolicy().addRoot("bulk", rootDir);
+    }
+
+    @After
+    @Override
+    public void tearDown() {
+        deleteRecursive(rootDir);
+        super.tearDown();
+    }
+
+    // A database that is not routed explicitly goes to the default root: the directory set up by init.
+    @Test
+    public void testDefaultRoot() {
+        assertEquals(StoragePolicy.DEFAULT_ROOT, policy.getRootName("unrouted"));
+        assertEquals(CouchbaseLiteInternal.getDbDirectoryPath(), policy.getDirectory("unrouted"));
+        assertEquals(CouchbaseLiteInternal.getTmpDirectoryPath(), policy.getScratchDirectory("unrouted"));
+        assertEquals(CouchbaseLiteInternal.getDbDirectoryPath(), policy.configure("unrouted", null).getDirectory());
+    }
+
+    @Test
+    public void testRouting() throws IOException {
+        policy.route("big", "bulk");
+
+        assertEquals("bulk", policy.getRootName("big"));
+        assertEquals(rootDir.getCanonicalPath(), policy.getDirectory("big"));
+        assertTrue(new File(policy.getScratchDirectory("big")).isDirectory());
+        assertNotEquals(policy.getDirectory("big"), policy.getScratchDirectory("big"));
+        assertEquals(rootDir.getCanonicalPath(), policy.configure("big", null).getDirectory());
+
+        // routing one database doesn't move the others
+        assertEquals(StoragePolicy.DEFAULT_ROOT, policy.getRootName("small"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRouteToUnknownRoot() { policy.route("big", "nowhere"); }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAddDuplicateRoot() { policy.addRoot("bulk", rootDir); }
+
+    // configure copies the configuration: the original may be in use, and so read-only.
+    @Test
+    public void testConfigureCopies() throws IOException {
+        policy.route("big", "bulk");
+
+        final DatabaseConfiguration config = new DatabaseConfiguration();
+        final DatabaseConfiguration routed = policy.configure("big", config);
+
+        assertEquals(rootDir.getCanonicalPath(), routed.getDirectory());
+        assertNotEquals(routed.getDirectory(), config.getDirectory());
+    }
+
+    // A database opened with the routed configuration is on the root, and is counted in its stats.
+    @Test
+    public void testStats() throws CouchbaseLiteException, IOException {
+        policy.route("big", "bulk");
+
+        final Database db = new Database("big", policy.configure("big", null));
+        try {
+            assertEquals(rootDir.getCanonicalPath(), new File(db.getPath()).getParentFile().getCanonicalPath());
+
+            final Map<String, StoragePolicy.RootStats> stats = policy.getAllStats();
+            assertEquals(2, stats.size());
+
+            final StoragePolicy.RootStats bulk = stats.get("bulk");
+            assertEquals(1, bulk.getConfigureCount());
+            assertTrue(bulk.getUsedBytes() > 0);
+            assertTrue(bulk.getAvailableBytes() <= bulk.getTotalBytes());
+
+            assertEquals(0, stats.get(StoragePolicy.DEFAULT_ROOT).getConfigureCount());
+        }
+        finally { db.delete(); }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testStatsForUnknownRoot() { policy.getStats("nowhere"); }
+
+    private static void deleteRecursive(File file) {
+        final File[] files = file.listFiles();
+        if (files != null) {
+            for (File f: files) { deleteRecursive(f); }
+        }
+        if (!file.delete()) { Report.log(LogLevel.WARNING, "Failed deleting " + file); }
+    }
+}
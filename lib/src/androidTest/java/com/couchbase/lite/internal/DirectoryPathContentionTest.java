@@ -0,0 +1,122 @@
+//
+// Copyright (c) 2020 Couchbase, Inc All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.couchbase.lite.internal;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import com.couchbase.lite.LogLevel;
+import com.couchbase.lite.PlatformBaseTest;
+import com.couchbase.lite.utils.Report;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Every database open asks CouchbaseLiteInternal for its directory paths.
+ * Many threads opening databases at once must not serialize on those lookups.
+ */
+public class DirectoryPathContentionTest extends PlatformBaseTest {
+    private static final int THREADS = 8;
+    private static final int CALLS = 20000;
+    private static final int ROOTS = 4;
+    private static final long TIMEOUT_SECS = 60;
+
+    // Throughput with several threads looking up paths should be no worse than with one.
+    @Test
+    public void testPathLookupContention() throws InterruptedException {
+        final String[] roots = new String[ROOTS];
+        roots[0] = null;
+        for (int i = 1; i < ROOTS; i++) { roots[i] = getScratchDirectoryPath("contention-" + i); }
+
+        // warm the caches
+        for (String root: roots) {
+            CouchbaseLiteInternal.makeDbPath(root);
+            CouchbaseLiteInternal.makeTmpPath(root);
+        }
+
+        final long uncontended = measureCallsPerSec(1, roots);
+        final long contended = measureCallsPerSec(THREADS, roots);
+
+        Report.log(
+            LogLevel.INFO,
+            "Path lookups: 1 thread %d/s, %d threads %d/s (%d processors)",
+            uncontended,
+            THREADS,
+            contended,
+            Runtime.getRuntime().availableProcessors());
+
+        // allow for scheduling noise on a busy device
+        assertTrue(contended * 2 >= uncontended);
+    }
+
+    // A deleted directory is re-created once its cached path is invalidated.
+    @Test
+    public void testInvalidatePaths() {
+        final String root = getScratchDirectoryPath("invalidate-" + System.currentTimeMillis());
+        final String dbPath = CouchbaseLiteInternal.makeDbPath(root);
+        final File dbDir = new File(dbPath);
+        assertTrue(dbDir.isDirectory());
+
+        assertTrue(dbDir.delete());
+        // the path is cached: the directory is not checked again...
+        assertEquals(dbPath, CouchbaseLiteInternal.makeDbPath(root));
+        assertFalse(dbDir.exists());
+
+        // ... until the cached path is invalidated
+        CouchbaseLiteInternal.invalidatePaths(root);
+        assertEquals(dbPath, CouchbaseLiteInternal.makeDbPath(root));
+        assertTrue(dbDir.isDirectory());
+        assertTrue(dbDir.delete());
+    }
+
+    private long measureCallsPerSec(int threads, String[] roots) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        for (int i = 0; i < threads; i++) {
+            final int offset = i;
+            new Thread(() -> {
+                try {
+                    start.await();
+                    for (int j = 0; j < CALLS; j++) {
+                        final String root = roots[(j + offset) % roots.length];
+                        CouchbaseLiteInternal.makeDbPath(root);
+                        CouchbaseLiteInternal.makeTmpPath(root);
+                    }
+                }
+                catch (InterruptedException | RuntimeException e) { failure.set(e); }
+                finally { done.countDown(); }
+            }).start();
+        }
+
+        final long startedAt = System.nanoTime();
+        start.countDown();
+        assertTrue(done.await(TIMEOUT_SECS, TimeUnit.SECONDS));
+        final long elapsedNs = Math.max(1, System.nanoTime() - startedAt);
+        assertNull(failure.get());
+
+        return (threads * CALLS * 2L * TimeUnit.SECONDS.toNanos(1)) / elapsedNs;
+    }
+}
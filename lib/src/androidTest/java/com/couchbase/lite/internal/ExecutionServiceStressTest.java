@@ -0,0 +1,166 @@
+//
+// Copyright (c) 2020 Couchbase, Inc All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.couchbase.lite.internal;
+
+import android.os.AsyncTask;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.couchbase.lite.LogLevel;
+import com.couchbase.lite.utils.Report;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * CBL's pool must stay responsive while the application saturates AsyncTask's pool,
+ * and must not deadlock when its own queue is full.
+ */
+public class ExecutionServiceStressTest {
+    private static final int SAMPLES = 200;
+    private static final long TIMEOUT_SECS = 60;
+
+    // Notification latency with AsyncTask idle and with AsyncTask saturated should be about the same.
+    // With the old, shared pool, no notification could run until the application's tasks finished.
+    @Test
+    public void testLatencyWhileAsyncTaskIsSaturated() throws InterruptedException {
+        final AndroidExecutionService service = new AndroidExecutionService();
+        final Executor serial = service.getSerialExecutor();
+
+        final long[] idle = measureLatencies(serial);
+
+        final CountDownLatch release = new CountDownLatch(1);
+        final int blocked = saturateAsyncTask(release);
+        try {
+            final long[] saturated = measureLatencies(serial);
+            assertTrue(blocked > 0);
+            // every notification ran while all of AsyncTask's threads were still blocked
+            assertEquals(1, release.getCount());
+
+            Report.log(
+                LogLevel.INFO,
+                "Notification latency (us): AsyncTask idle p50 %d, p99 %d; saturated (%d tasks) p50 %d, p99 %d",
+                percentile(idle, 50),
+                percentile(idle, 99),
+                blocked,
+                percentile(saturated, 50),
+                percentile(saturated, 99));
+
+            // flat, allowing for scheduling noise on a busy device
+            assertTrue(percentile(saturated, 50) <= (percentile(idle, 50) * 10) + 20000);
+        }
+        finally { release.countDown(); }
+    }
+
+    // A tiny queue and a long wait: serial executors that yield their threads, and pool tasks
+    // that submit more tasks, must never wait for space that only the pool's own threads can make.
+    @Test
+    public void testFullQueueDoesNotDeadlock() throws InterruptedException {
+        final AndroidExecutionService service = new AndroidExecutionService(4, TimeUnit.SECONDS.toMillis(TIMEOUT_SECS));
+        final Executor concurrent = service.getConcurrentExecutor();
+
+        final int executors = 16;
+        final int tasksPerExecutor = 500;
+        final CountDownLatch done = new CountDownLatch((executors * tasksPerExecutor) * 2);
+        final AtomicInteger rejected = new AtomicInteger();
+
+        for (int i = 0; i < executors; i++) {
+            final Executor serial = service.getSerialExecutor();
+            final Thread submitter = new Thread(() -> {
+                for (int j = 0; j < tasksPerExecutor; j++) {
+                    try {
+                        serial.execute(() -> {
+                            busy(50);
+                            done.countDown();
+                            // a pool thread submitting to its own, full pool
+                            try { concurrent.execute(done::countDown); }
+                            catch (RejectedExecutionException e) {
+                                rejected.incrementAndGet();
+                                done.countDown();
+                            }
+                        });
+                    }
+                    catch (RejectedExecutionException e) {
+                        rejected.incrementAndGet();
+                        done.countDown();
+                        done.countDown();
+                    }
+                }
+            });
+            submitter.start();
+        }
+
+        // every task, run or rejected, counts down twice: once for itself and once for its nested task
+        assertTrue(done.await(TIMEOUT_SECS, TimeUnit.SECONDS));
+
+        Report.log(
+            LogLevel.INFO,
+            "Full queue: %d of %d tasks rejected",
+            rejected.get(),
+            (executors * tasksPerExecutor) * 2);
+    }
+
+    // Time from submission to start, in us, of tasks submitted one at a time
+    private static long[] measureLatencies(Executor executor) throws InterruptedException {
+        final long[] latencies = new long[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) {
+            final int sample = i;
+            final CountDownLatch ran = new CountDownLatch(1);
+            final long submittedAt = System.nanoTime();
+            executor.execute(() -> {
+                latencies[sample] = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - submittedAt);
+                ran.countDown();
+            });
+            assertTrue(ran.await(TIMEOUT_SECS, TimeUnit.SECONDS));
+        }
+        return latencies;
+    }
+
+    // Fill AsyncTask's pool, and its queue, with tasks that block until released
+    private static int saturateAsyncTask(CountDownLatch release) {
+        int n = 0;
+        try {
+            while (n < 1000) {
+                AsyncTask.THREAD_POOL_EXECUTOR.execute(() -> {
+                    try { release.await(); }
+                    catch (InterruptedException ignore) { }
+                });
+                n++;
+            }
+        }
+        catch (RejectedExecutionException ignore) { }
+        return n;
+    }
+
+    private static long percentile(long[] values, int pct) {
+        final long[] sorted = Arrays.copyOf(values, values.length);
+        Arrays.sort(sorted);
+        return sorted[Math.min(sorted.length - 1, (sorted.length * pct) / 100)];
+    }
+
+    private static void busy(long micros) {
+        final long end = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(micros);
+        while (System.nanoTime() < end) { Thread.yield(); }
+    }
+}
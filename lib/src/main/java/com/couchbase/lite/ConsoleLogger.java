@@ -18,16 +18,38 @@
 package com.couchbase.lite;
 
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
 
 /**
  * A class that sends log messages to Android's system log, available via 'logcat'.
+ * <p>
+ * By default, messages are written synchronously, on the thread that logs them.
+ * In async mode, they are put in a bounded ring buffer and written by a single background thread.
+ * If the buffer is full, messages are dropped and counted: the count is logged when the buffer drains.
  */
 public final class ConsoleLogger extends AbstractConsoleLogger {
-    @Override
-    protected void doLog(LogLevel level, @NonNull LogDomain domain, @NonNull String message) {
-        final String tag = "CouchbaseLite/" + domain.toString();
+    private static final String TAG_PREFIX = "CouchbaseLite/";
+    private static final Map<LogDomain, String> TAGS;
+    static {
+        final Map<LogDomain, String> tags = new EnumMap<>(LogDomain.class);
+        for (LogDomain domain: LogDomain.values()) { tags.put(domain, TAG_PREFIX + domain); }
+        TAGS = tags;
+    }
+
+    private static final int RING_SIZE = 1024; // must be a power of 2
+    private static final long DRAIN_IDLE_NS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static void write(@NonNull LogLevel level, @NonNull LogDomain domain, @NonNull String message) {
+        final String tag = TAGS.get(domain);
         switch (level) {
             case DEBUG:
                 Log.d(tag, message);
@@ -46,4 +68,82 @@ public final class ConsoleLogger extends AbstractConsoleLogger {
                 break;
         }
     }
+
+
+    private final AtomicLong dropped = new AtomicLong(0);
+    private final AtomicBoolean drainerIdle = new AtomicBoolean(false);
+
+    @Nullable
+    private volatile LogRing ring;
+    @Nullable
+    private volatile Thread drainer;
+
+    /**
+     * Write log messages asynchronously, on a background thread.
+     * In async mode, logging a message costs the caller only a few atomic operations,
+     * but messages may be dropped if they are logged faster than they can be written.
+     *
+     * @param async true to log asynchronously.
+     */
+    public synchronized void setAsync(boolean async) {
+        if (async == (ring != null)) { return; }
+
+        if (!async) {
+            ring = null;
+            if (drainer != null) { LockSupport.unpark(drainer); }
+            drainer = null;
+            return;
+        }
+
+        final LogRing logRing = new LogRing(RING_SIZE, ConsoleLogger::write);
+        ring = logRing;
+        drainer = new Thread(() -> drain(logRing), "CBL-log");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    /**
+     * @return the number of messages dropped, in async mode, because the buffer was full.
+     */
+    public long getDroppedCount() { return dropped.get(); }
+
+    @Override
+    protected void doLog(LogLevel level, @NonNull LogDomain domain, @NonNull String message) {
+        final LogRing logRing = ring;
+        if (logRing == null) {
+            write(level, domain, message);
+            return;
+        }
+
+        if (!logRing.offer(level, domain, message)) {
+            dropped.incrementAndGet();
+            return;
+        }
+
+        final Thread thread = drainer;
+        if ((thread != null) && drainerIdle.compareAndSet(true, false)) { LockSupport.unpark(thread); }
+    }
+
+    // Runs on the drain thread, until async mode is turned off.
+    private void drain(@NonNull LogRing logRing) {
+        long reportedDrops = dropped.get();
+        while (true) {
+            if (logRing.writeNext()) { continue; }
+
+            final long drops = dropped.get();
+            if (drops != reportedDrops) {
+                final long n = drops - reportedDrops;
+                reportedDrops = drops;
+                try { write(LogLevel.WARNING, LogDomain.DATABASE, "Console logger dropped " + n + " messages"); }
+                catch (RuntimeException ignore) { }
+            }
+
+            if (ring != logRing) { return; }
+
+            drainerIdle.set(true);
+            // check again, in case a message arrived just before the flag was set
+            if (!logRing.writeNext()) { LockSupport.parkNanos(this, DRAIN_IDLE_NS); }
+            drainerIdle.set(false);
+        }
+    }
 }
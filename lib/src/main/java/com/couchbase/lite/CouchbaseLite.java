@@ -21,6 +21,7 @@ import android.support.annotation.Nullable;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.Future;
 
 import com.couchbase.lite.internal.CouchbaseLiteInternal;
 
@@ -42,14 +43,38 @@ public final class CouchbaseLite {
      * @param rootDirectory the root directory for CBL files
      */
     public static void init(@NonNull Context ctxt, @Nullable File rootDirectory) {
-        String rootDirPath = null;
-        if (rootDirectory != null) {
-            try { rootDirPath = rootDirectory.getCanonicalPath(); }
-            catch (IOException e) {
-                throw new IllegalArgumentException("Could not get path for directory: " + rootDirectory, e);
-            }
-        }
+        CouchbaseLiteInternal.init(new MValueDelegate(), getRootDirPath(rootDirectory), ctxt);
+    }
+
+    /**
+     * Initialize CouchbaseLite library in the background.
+     * Either this method or init() MUST be called before using CouchbaseLite.
+     * Calls to CouchbaseLite made before initialization is complete will block until it is.
+     *
+     * @return a future that completes when the library is ready
+     */
+    @NonNull
+    public static Future<?> initAsync(@NonNull Context ctxt) { return initAsync(ctxt, null); }
 
-        CouchbaseLiteInternal.init(new MValueDelegate(), rootDirPath, ctxt);
+    /**
+     * Initialize CouchbaseLite library in the background.
+     * This method allows specifying a root directory for CBL files.
+     * Use this version with great caution.
+     *
+     * @param rootDirectory the root directory for CBL files
+     * @return a future that completes when the library is ready
+     */
+    @NonNull
+    public static Future<?> initAsync(@NonNull Context ctxt, @Nullable File rootDirectory) {
+        return CouchbaseLiteInternal.initAsync(new MValueDelegate(), getRootDirPath(rootDirectory), ctxt);
+    }
+
+    @Nullable
+    private static String getRootDirPath(@Nullable File rootDirectory) {
+        if (rootDirectory == null) { return null; }
+        try { return rootDirectory.getCanonicalPath(); }
+        catch (IOException e) {
+            throw new IllegalArgumentException("Could not get path for directory: " + rootDirectory, e);
+        }
     }
 }
@@ -0,0 +1,104 @@
+//
+// Copyright (c) 2020 Couchbase, Inc All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.couchbase.lite;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * A bounded, lock-free, multi-producer, single-consumer ring buffer of log records.
+ * Records are stored in pre-allocated parallel arrays: logging a message allocates nothing.
+ * A slot's sequence number tells producers and the consumer whose turn it is to use it.
+ */
+final class LogRing {
+    /**
+     * The destination for records taken from the ring.
+     */
+    interface Writer {
+        void write(@NonNull LogLevel level, @NonNull LogDomain domain, @NonNull String message);
+    }
+
+    @NonNull
+    private final Writer writer;
+
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final LogLevel[] levels;
+    private final LogDomain[] domains;
+    private final String[] messages;
+
+    private final AtomicLong tail = new AtomicLong(0);
+    private long head; // accessed only by the consumer
+
+    // size must be a power of 2
+    LogRing(int size, @NonNull Writer writer) {
+        if ((size <= 0) || ((size & (size - 1)) != 0)) {
+            throw new IllegalArgumentException("Size must be a power of 2: " + size);
+        }
+
+        this.writer = writer;
+
+        mask = size - 1;
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) { sequences.set(i, i); }
+        levels = new LogLevel[size];
+        domains = new LogDomain[size];
+        messages = new String[size];
+    }
+
+    // Return false if the ring is full
+    boolean offer(@NonNull LogLevel level, @NonNull LogDomain domain, @NonNull String message) {
+        long pos = tail.get();
+        int slot;
+        while (true) {
+            slot = (int) (pos & mask);
+            final long diff = sequences.get(slot) - pos;
+            if (diff < 0) { return false; }
+            if ((diff == 0) && tail.compareAndSet(pos, pos + 1)) { break; }
+            pos = tail.get();
+        }
+
+        levels[slot] = level;
+        domains[slot] = domain;
+        messages[slot] = message;
+        sequences.lazySet(slot, pos + 1);
+
+        return true;
+    }
+
+    // Write the oldest record, if there is one.  Return false if the ring is empty.
+    // Must be called only from the consumer thread.
+    boolean writeNext() {
+        final int slot = (int) (head & mask);
+        if (sequences.get(slot) != head + 1) { return false; }
+
+        final LogLevel level = levels[slot];
+        final LogDomain domain = domains[slot];
+        final String message = messages[slot];
+        messages[slot] = null;
+        sequences.lazySet(slot, head + mask + 1);
+        head++;
+
+        // a failure to write one message must not kill the consumer
+        try { writer.write(level, domain, message); }
+        catch (RuntimeException ignore) { }
+
+        return true;
+    }
+}
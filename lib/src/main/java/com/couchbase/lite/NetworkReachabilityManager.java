@@ -17,45 +17,26 @@
 //
 package com.couchbase.lite;
 
-import android.content.BroadcastReceiver;
-import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
-import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
-
-import com.couchbase.lite.internal.CouchbaseLiteInternal;
+import com.couchbase.lite.internal.replicator.NetworkReachabilityHub;
 import com.couchbase.lite.internal.support.Log;
 
 
 /**
  * NOTE: https://developer.android.com/training/basics/network-ops/managing.html
+ * <p>
+ * Network events come from the process-wide NetworkReachabilityHub, which debounces them
+ * and staggers reconnects across all of the replicators in the process.
  */
 final class NetworkReachabilityManager extends AbstractNetworkReachabilityManager {
 
     private static final LogDomain DOMAIN = LogDomain.REPLICATOR;
 
-    private class NetworkReceiver extends BroadcastReceiver {
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            if (!ConnectivityManager.CONNECTIVITY_ACTION.equals(intent.getAction()) || !listening) { return; }
-            final boolean online = isOnline(context);
-            Log.v(DOMAIN, "NetworkReceiver.onReceive() Online -> " + online);
-            if (online) { notifyListenersNetworkReachable(); }
-            else { notifyListenersNetworkUneachable(); }
-        }
-    }
+    private static final int DEFAULT_PRIORITY = 0;
 
-    private final NetworkReceiver receiver;
-    private final Context context;
+    private final NetworkReachabilityHub.Subscriber subscriber = this::onNetworkChanged;
     private boolean listening;
 
-    NetworkReachabilityManager() {
-        this.receiver = new NetworkReceiver();
-        this.context = CouchbaseLiteInternal.getContext();
-
-        this.listening = false;
-    }
+    NetworkReachabilityManager() { this.listening = false; }
 
     /**
      * NOTE: startListening() method is called from addNetworkReachabilityListener() which is
@@ -63,13 +44,11 @@ final class NetworkReachabilityManager extends AbstractNetworkReachabilityManage
      */
     @Override
     void startListening() {
-        if (!listening) {
-            final IntentFilter filter = new IntentFilter();
-            filter.addAction(ConnectivityManager.CONNECTIVITY_ACTION);
-            Log.v(DOMAIN, "%s: startListening() registering %s with context %s", this, receiver, context);
-            context.registerReceiver(receiver, filter);
-            listening = true;
-        }
+        if (listening) { return; }
+        Log.v(DOMAIN, "%s: startListening() subscribing", this);
+        listening = true;
+        // The replicator's configuration does not reach this class: all replicators have the same priority
+        NetworkReachabilityHub.getInstance().subscribe(subscriber, DEFAULT_PRIORITY);
     }
 
     /**
@@ -78,30 +57,15 @@ final class NetworkReachabilityManager extends AbstractNetworkReachabilityManage
      */
     @Override
     void stopListening() {
-        if (listening) {
-            try {
-                Log.v(
-                    DOMAIN,
-                    "%s: stopListening() unregistering %s with context %s", this, receiver, context);
-                context.unregisterReceiver(receiver);
-            }
-            catch (Exception e) {
-                Log.e(
-                    DOMAIN,
-                    "%s: stopListening() exception unregistering %s with context %s",
-                    e,
-                    this,
-                    receiver,
-                    context);
-            }
-            listening = false;
-        }
+        if (!listening) { return; }
+        Log.v(DOMAIN, "%s: stopListening() unsubscribing", this);
+        NetworkReachabilityHub.getInstance().unsubscribe(subscriber);
+        listening = false;
     }
 
-    private boolean isOnline(Context ctx) {
-        final ConnectivityManager service = ((ConnectivityManager) ctx.getSystemService(Context.CONNECTIVITY_SERVICE));
-        if (service == null) { return false; }
-        final NetworkInfo networkInfo = service.getActiveNetworkInfo();
-        return (networkInfo != null) && networkInfo.isConnected();
+    private void onNetworkChanged(boolean online) {
+        Log.v(DOMAIN, "%s: network changed. Online -> %s", this, online);
+        if (online) { notifyListenersNetworkReachable(); }
+        else { notifyListenersNetworkUneachable(); }
     }
 }
@@ -0,0 +1,283 @@
+//
+// Copyright (c) 2020 Couchbase, Inc All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.couchbase.lite;
+
+import android.os.StatFs;
+import android.support.annotation.GuardedBy;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.couchbase.lite.internal.CouchbaseLiteInternal;
+import com.couchbase.lite.internal.utils.Preconditions;
+
+
+/**
+ * Places databases on one of several storage roots: for instance, small, busy databases
+ * on internal storage and large, attachment-heavy ones on a bigger volume.
+ * <p>
+ * Each root has a database directory and a scratch directory.  Databases that are not routed
+ * explicitly go to the default root: the directories set up by CouchbaseLite.init.
+ * Use {@link #configure(String, DatabaseConfiguration)} to get a configuration that opens a database on its root.
+ * <p>
+ * NOTE: LiteCore has a single, process-wide temp directory.  A root's scratch directory is
+ * for the application's own files: it does not move LiteCore's temp files.
+ */
+public final class StoragePolicy {
+    public static final String DEFAULT_ROOT = "default";
+
+    /**
+     * Statistics for a storage root.
+     */
+    public static final class RootStats {
+        @NonNull
+        private final String name;
+        @NonNull
+        private final String dbDirPath;
+        private final long totalBytes;
+        private final long availableBytes;
+        private final long usedBytes;
+        private final long configures;
+
+        RootStats(
+            @NonNull String name,
+            @NonNull String dbDirPath,
+            long totalBytes,
+            long availableBytes,
+            long usedBytes,
+            long configures) {
+            this.name = name;
+            this.dbDirPath = dbDirPath;
+            this.totalBytes = totalBytes;
+            this.availableBytes = availableBytes;
+            this.usedBytes = usedBytes;
+            this.configures = configures;
+        }
+
+        @NonNull
+        public String getName() { return name; }
+
+        @NonNull
+        public String getDbDirectoryPath() { return dbDirPath; }
+
+        /**
+         * @return the size of the volume that holds the root, in bytes.
+         */
+        public long getTotalBytes() { return totalBytes; }
+
+        /**
+         * @return the space available to the application on the volume that holds the root, in bytes.
+         */
+        public long getAvailableBytes() { return availableBytes; }
+
+        /**
+         * @return the space used by the files in the root's database directory, in bytes.
+         * Files in the root's scratch directory are not included.
+         */
+        public long getUsedBytes() { return usedBytes; }
+
+        /**
+         * @return the number of database configurations this policy has pointed at the root.
+         */
+        public long getConfigureCount() { return configures; }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "RootStats{" + name + " @" + dbDirPath + ": " + usedBytes + " used, "
+                + availableBytes + "/" + totalBytes + " available, " + configures + " configures}";
+        }
+    }
+
+    private static final class Root {
+        @Nullable
+        final String rootDirPath;
+        final AtomicLong configures = new AtomicLong(0);
+
+        Root(@Nullable String rootDirPath) { this.rootDirPath = rootDirPath; }
+
+        // The default root's directories may be changed by setupDirectories: don't cache them.
+        @NonNull
+        String getDbDirPath() {
+            return (rootDirPath == null)
+                ? CouchbaseLiteInternal.getDbDirectoryPath()
+                : CouchbaseLiteInternal.makeDbPath(rootDirPath);
+        }
+
+        @NonNull
+        String getTmpDirPath() {
+            return (rootDirPath == null)
+                ? CouchbaseLiteInternal.getTmpDirectoryPath()
+                : CouchbaseLiteInternal.makeTmpPath(rootDirPath);
+        }
+    }
+
+
+    @GuardedBy("this")
+    private final Map<String, Root> roots = new HashMap<>();
+    @GuardedBy("this")
+    private final Map<String, String> routes = new HashMap<>();
+
+    public StoragePolicy() { roots.put(DEFAULT_ROOT, new Root(null)); }
+
+    /**
+     * Add a storage root.  The root's directories are created, if necessary.
+     *
+     * @param name      the root's name
+     * @param directory the root directory
+     * @return this
+     */
+    @NonNull
+    public StoragePolicy addRoot(@NonNull String name, @NonNull File directory) {
+        Preconditions.assertNotNull(name, "name");
+        Preconditions.assertNotNull(directory, "directory");
+
+        final String rootDirPath;
+        try { rootDirPath = directory.getCanonicalPath(); }
+        catch (IOException e) {
+            throw new IllegalArgumentException("Could not get path for directory: " + directory, e);
+        }
+
+        final Root root = new Root(rootDirPath);
+        // verify the directories now, rather than when a database is opened
+        root.getDbDirPath();
+        root.getTmpDirPath();
+
+        synchronized (this) {
+            if (roots.containsKey(name)) { throw new IllegalArgumentException("Root already exists: " + name); }
+            roots.put(name, root);
+        }
+
+        return this;
+    }
+
+    /**
+     * Route a database to a storage root.
+     *
+     * @param dbName   the database name
+     * @param rootName the name of a root previously added to this policy
+     * @return this
+     */
+    @NonNull
+    public synchronized StoragePolicy route(@NonNull String dbName, @NonNull String rootName) {
+        Preconditions.assertNotNull(dbName, "dbName");
+        Preconditions.assertNotNull(rootName, "rootName");
+        if (!roots.containsKey(rootName)) { throw new IllegalArgumentException("No such root: " + rootName); }
+        routes.put(dbName, rootName);
+        return this;
+    }
+
+    /**
+     * @param dbName the database name
+     * @return the name of the root to which the database is routed
+     */
+    @NonNull
+    public synchronized String getRootName(@NonNull String dbName) {
+        final String rootName = routes.get(dbName);
+        return (rootName != null) ? rootName : DEFAULT_ROOT;
+    }
+
+    /**
+     * @param dbName the database name
+     * @return the directory in which the database belongs
+     */
+    @NonNull
+    public String getDirectory(@NonNull String dbName) { return getRoot(getRootName(dbName)).getDbDirPath(); }
+
+    /**
+     * @param dbName the database name
+     * @return the scratch directory on the same root as the database
+     */
+    @NonNull
+    public String getScratchDirectory(@NonNull String dbName) { return getRoot(getRootName(dbName)).getTmpDirPath(); }
+
+    /**
+     * Create a configuration for a database, pointed at the database's root.
+     * The passed configuration is copied, not changed: it may be one that is already in use,
+     * and so can no longer be changed.
+     *
+     * @param dbName the database name
+     * @param config the configuration to copy.  If null, the new configuration has default settings.
+     * @return a new configuration, whose directory is the database's root
+     */
+    @NonNull
+    public DatabaseConfiguration configure(@NonNull String dbName, @Nullable DatabaseConfiguration config) {
+        final DatabaseConfiguration dbConfig = new DatabaseConfiguration(config);
+        final Root root = getRoot(getRootName(dbName));
+        dbConfig.setDirectory(root.getDbDirPath());
+        root.configures.incrementAndGet();
+        return dbConfig;
+    }
+
+    /**
+     * Get statistics for a root.  This walks the root's database directory: don't call it on the main thread.
+     *
+     * @param rootName the root's name
+     * @return statistics for the root
+     */
+    @NonNull
+    public RootStats getStats(@NonNull String rootName) {
+        final Root root = getRoot(rootName);
+        final String dbDirPath = root.getDbDirPath();
+        final StatFs fs = new StatFs(dbDirPath);
+        return new RootStats(
+            rootName,
+            dbDirPath,
+            fs.getTotalBytes(),
+            fs.getAvailableBytes(),
+            getSize(new File(dbDirPath), root.getTmpDirPath()),
+            root.configures.get());
+    }
+
+    /**
+     * @return statistics for all roots.
+     */
+    @NonNull
+    public Map<String, RootStats> getAllStats() {
+        final String[] names;
+        synchronized (this) { names = roots.keySet().toArray(new String[0]); }
+
+        final Map<String, RootStats> stats = new HashMap<>();
+        for (String name: names) { stats.put(name, getStats(name)); }
+        return stats;
+    }
+
+    @NonNull
+    private synchronized Root getRoot(@NonNull String rootName) {
+        final Root root = roots.get(rootName);
+        if (root == null) { throw new IllegalArgumentException("No such root: " + rootName); }
+        return root;
+    }
+
+    // A named root's scratch directory is inside its database directory: skip it.
+    private static long getSize(@NonNull File file, @NonNull String tmpDirPath) {
+        if (!file.isDirectory()) { return file.length(); }
+
+        final File[] files = file.listFiles();
+        if (files == null) { return 0; }
+
+        long size = 0;
+        for (File f: files) {
+            if (!tmpDirPath.equals(f.getPath())) { size += getSize(f, tmpDirPath); }
+        }
+        return size;
+    }
+}
@@ -0,0 +1,307 @@
+//
+// Copyright (c) 2020 Couchbase, Inc All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.couchbase.lite;
+
+import android.support.annotation.GuardedBy;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import com.couchbase.lite.internal.CouchbaseLiteInternal;
+import com.couchbase.lite.internal.core.C4Base;
+import com.couchbase.lite.internal.core.C4Database;
+import com.couchbase.lite.internal.core.C4Document;
+import com.couchbase.lite.internal.core.C4Query;
+import com.couchbase.lite.internal.core.C4QueryEnumerator;
+import com.couchbase.lite.internal.core.C4Replicator;
+import com.couchbase.lite.internal.fleece.FLArray;
+import com.couchbase.lite.internal.fleece.FLDict;
+import com.couchbase.lite.internal.fleece.FLEncoder;
+import com.couchbase.lite.internal.fleece.FLValue;
+import com.couchbase.lite.internal.support.Log;
+import com.couchbase.lite.internal.utils.Preconditions;
+
+
+/**
+ * Opt-in warm-up, to make the first database open and the first query faster.
+ * <p>
+ * On a background thread, after CouchbaseLite has been initialized, the warm-up
+ * loads and initializes the classes that front the native library, opens the registered databases,
+ * and compiles the registered queries.  The databases and queries are kept, ready for use:
+ * get them with {@link #takeDatabase(String)} and {@link #getQuery(String)}.
+ * A query must be reused to benefit from its compilation.
+ * <p>
+ * A database taken from the warm-up belongs to the caller, who must close it.
+ * Call {@link #close()} to close the databases that were not taken.
+ * <p>
+ * Failures are logged and skipped: a database or query that could not be warmed up is simply not available.
+ */
+public final class WarmUp {
+    private static final LogDomain DOMAIN = LogDomain.DATABASE;
+
+    public static final String PHASE_CLASSES = "classes";
+    public static final String PHASE_DATABASES = "databases";
+    public static final String PHASE_QUERIES = "queries";
+
+    // Classes used by the first database open and query.  Loading them, on first use, means verifying
+    // and initializing them.  Their native methods are bound when the native library is loaded,
+    // or lazily on first call: not here.
+    private static final Class<?>[] NATIVE_CLASSES = {
+        C4Base.class,
+        C4Database.class,
+        C4Document.class,
+        C4Query.class,
+        C4QueryEnumerator.class,
+        C4Replicator.class,
+        FLEncoder.class,
+        FLValue.class,
+        FLDict.class,
+        FLArray.class
+    };
+
+    /**
+     * Creates a query to be compiled during warm-up.
+     */
+    public interface QueryFactory {
+        @NonNull
+        Query create(@NonNull Database db);
+    }
+
+    private static final class QuerySpec {
+        @NonNull
+        final String key;
+        @NonNull
+        final String dbName;
+        @NonNull
+        final QueryFactory factory;
+
+        QuerySpec(@NonNull String key, @NonNull String dbName, @NonNull QueryFactory factory) {
+            this.key = key;
+            this.dbName = dbName;
+            this.factory = factory;
+        }
+    }
+
+
+    @GuardedBy("this")
+    private final Map<String, DatabaseConfiguration> dbSpecs = new LinkedHashMap<>();
+    @GuardedBy("this")
+    private final List<QuerySpec> querySpecs = new ArrayList<>();
+    @GuardedBy("this")
+    private Future<?> warmUp;
+    @GuardedBy("this")
+    private final Map<String, Database> databases = new HashMap<>();
+    @GuardedBy("this")
+    private boolean closed;
+
+    private final Map<String, Query> queries = new ConcurrentHashMap<>();
+    // phase name -> elapsed time, in ms, in order of execution
+    private final Map<String, Long> phaseTimes = Collections.synchronizedMap(new LinkedHashMap<>());
+
+    /**
+     * Register a database to be opened during warm-up.
+     *
+     * @param name   the database name
+     * @param config the database configuration.  If null, the default configuration is used.
+     * @return this
+     */
+    @NonNull
+    public synchronized WarmUp addDatabase(@NonNull String name, @Nullable DatabaseConfiguration config) {
+        Preconditions.assertNotNull(name, "name");
+        assertNotStarted();
+        dbSpecs.put(name, config);
+        return this;
+    }
+
+    /**
+     * Register a query to be compiled during warm-up.  Its database must also be registered.
+     *
+     * @param key     the name by which the compiled query can be retrieved
+     * @param dbName  the name of the database to which the query applies
+     * @param factory creates the query
+     * @return this
+     */
+    @NonNull
+    public synchronized WarmUp addQuery(@NonNull String key, @NonNull String dbName, @NonNull QueryFactory factory) {
+        Preconditions.assertNotNull(key, "key");
+        Preconditions.assertNotNull(dbName, "dbName");
+        Preconditions.assertNotNull(factory, "factory");
+        assertNotStarted();
+        querySpecs.add(new QuerySpec(key, dbName, factory));
+        return this;
+    }
+
+    /**
+     * Start the warm-up on a background thread.  This may be called before asynchronous initialization
+     * is complete: the warm-up will wait for it.  A warm-up can be started only once.
+     *
+     * @return a future that completes when the warm-up is done.
+     */
+    @NonNull
+    public synchronized Future<?> start() {
+        assertNotStarted();
+
+        final Map<String, DatabaseConfiguration> dbs = new LinkedHashMap<>(dbSpecs);
+        final List<QuerySpec> qs = new ArrayList<>(querySpecs);
+        final FutureTask<?> task = new FutureTask<>(() -> warmUp(dbs, qs), null);
+        warmUp = task;
+
+        final Thread thread = new Thread(task, "CBL-warmup");
+        thread.setDaemon(true);
+        thread.start();
+
+        return task;
+    }
+
+    /**
+     * Take a warmed-up database.  The caller becomes responsible for closing it:
+     * it will not be closed by {@link #close()}, and it cannot be taken again.
+     *
+     * @param name a registered database name
+     * @return the warmed-up database, or null if it is not (or not yet) open, or has already been taken.
+     */
+    @Nullable
+    public synchronized Database takeDatabase(@NonNull String name) { return databases.remove(name); }
+
+    /**
+     * @param key a registered query key
+     * @return the compiled query, or null if it is not (or not yet) compiled.
+     */
+    @Nullable
+    public Query getQuery(@NonNull String key) { return queries.get(key); }
+
+    /**
+     * @return the time taken by each completed phase of the warm-up, in ms.
+     */
+    @NonNull
+    public Map<String, Long> getPhaseTimes() {
+        synchronized (phaseTimes) { return new LinkedHashMap<>(phaseTimes); }
+    }
+
+    /**
+     * Close the warmed-up databases that have not been taken, and discard the compiled queries.
+     * A database that is still being opened by the warm-up is closed as soon as it is open.
+     */
+    public void close() {
+        final List<Database> dbs;
+        synchronized (this) {
+            closed = true;
+            dbs = new ArrayList<>(databases.values());
+            databases.clear();
+        }
+
+        queries.clear();
+        for (Database db: dbs) { closeDatabase(db); }
+    }
+
+    @GuardedBy("this")
+    private void assertNotStarted() {
+        if (warmUp != null) { throw new IllegalStateException("Warm-up has already been started"); }
+    }
+
+    private void warmUp(@NonNull Map<String, DatabaseConfiguration> dbs, @NonNull List<QuerySpec> qs) {
+        CouchbaseLiteInternal.requireInit("Cannot warm up");
+
+        long start = System.nanoTime();
+        loadClasses();
+        start = endPhase(PHASE_CLASSES, start);
+
+        // the databases opened here: the caller may take them before their queries are compiled
+        final Map<String, Database> opened = new HashMap<>();
+        for (Map.Entry<String, DatabaseConfiguration> spec: dbs.entrySet()) {
+            final Database db = openDatabase(spec.getKey(), spec.getValue());
+            if (db != null) { opened.put(spec.getKey(), db); }
+        }
+        start = endPhase(PHASE_DATABASES, start);
+
+        for (QuerySpec spec: qs) { compileQuery(spec, opened.get(spec.dbName)); }
+        endPhase(PHASE_QUERIES, start);
+
+        Log.i(DOMAIN, "Warm-up complete: %s", getPhaseTimes());
+    }
+
+    private void loadClasses() {
+        // a class literal does not initialize the class: forName does
+        for (Class<?> c: NATIVE_CLASSES) {
+            try { Class.forName(c.getName(), true, c.getClassLoader()); }
+            catch (ClassNotFoundException | LinkageError e) {
+                Log.w(DOMAIN, "Warm-up could not initialize class %s", e, c.getName());
+            }
+        }
+    }
+
+    @Nullable
+    private Database openDatabase(@NonNull String name, @Nullable DatabaseConfiguration config) {
+        synchronized (this) { if (closed) { return null; } }
+
+        final Database db;
+        try { db = (config == null) ? new Database(name) : new Database(name, config); }
+        catch (CouchbaseLiteException e) {
+            Log.w(DOMAIN, "Warm-up could not open database %s", e, name);
+            return null;
+        }
+
+        synchronized (this) {
+            if (!closed) {
+                databases.put(name, db);
+                return db;
+            }
+        }
+
+        closeDatabase(db);
+        return null;
+    }
+
+    private void closeDatabase(@NonNull Database db) {
+        try { db.close(); }
+        catch (CouchbaseLiteException e) { Log.w(DOMAIN, "Warm-up could not close database %s", e, db.getName()); }
+    }
+
+    private void compileQuery(@NonNull QuerySpec spec, @Nullable Database db) {
+        synchronized (this) { if (closed) { return; } }
+
+        if (db == null) {
+            Log.w(DOMAIN, "Warm-up skipping query %s: database %s is not open", spec.key, spec.dbName);
+            return;
+        }
+
+        try {
+            final Query query = spec.factory.create(db);
+            // explain() compiles the query, which the query keeps for later executions
+            query.explain();
+            queries.put(spec.key, query);
+        }
+        catch (CouchbaseLiteException | RuntimeException e) {
+            Log.w(DOMAIN, "Warm-up could not compile query %s", e, spec.key);
+        }
+    }
+
+    private long endPhase(@NonNull String phase, long start) {
+        final long now = System.nanoTime();
+        phaseTimes.put(phase, TimeUnit.NANOSECONDS.toMillis(now - start));
+        return now;
+    }
+}
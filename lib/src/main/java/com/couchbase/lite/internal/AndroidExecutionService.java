@@ -17,14 +17,30 @@
 //
 package com.couchbase.lite.internal;
 
-import android.os.AsyncTask;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.Process;
+import android.support.annotation.GuardedBy;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.couchbase.lite.LogDomain;
 import com.couchbase.lite.internal.support.Log;
@@ -35,39 +51,171 @@ import com.couchbase.lite.internal.utils.Preconditions;
  * ExecutionService for Android.
  */
 public final class AndroidExecutionService extends AbstractExecutionService {
+    //---------------------------------------------
+    // Constants
+    //---------------------------------------------
+    private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+
+    // At least two threads, so that a single long-running task cannot stall everything else.
+    private static final int POOL_SIZE = Math.max(2, CPU_COUNT);
+    private static final int MAX_POOL_SIZE = 2 * POOL_SIZE;
+    private static final long KEEP_ALIVE_SECS = 30;
+
+    // Threads beyond the core pool are started only when this queue is full.
+    // Tasks that arrive when both are full are handled by the rejection policy: see WaitForSpacePolicy
+    public static final int DEFAULT_MAX_QUEUE_SIZE = 1024;
+    // By default, a task that does not fit is rejected immediately: see AbstractExecutionService.dumpServiceState
+    public static final long DEFAULT_MAX_WAIT_MS = 0;
+
+    private static final String THREAD_NAME_PREFIX = "CBL-worker-";
 
     //---------------------------------------------
     // Types
     //---------------------------------------------
-    private static class CancellableTask implements Cancellable {
-        private final Handler handler;
+    // Marks the pool's threads: a pool thread must never wait for space in the pool's own queue.
+    private static final class WorkerThread extends Thread {
+        WorkerThread(@NonNull Runnable task, @NonNull String name) { super(task, name); }
+    }
+
+    static boolean isWorkerThread() { return Thread.currentThread() instanceof WorkerThread; }
+
+    // Background priority keeps CBL's housekeeping from competing with the UI thread.
+    private static final class CBLThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadId = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(@NonNull Runnable task) {
+            final Thread thread = new WorkerThread(
+                () -> {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    task.run();
+                },
+                THREAD_NAME_PREFIX + threadId.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    // Backpressure: a task that does not fit waits, for a limited time, for space in the queue.
+    // A task submitted on the main thread never waits: blocking the UI is worse than losing the task.
+    // Neither does one submitted by the timer: that would delay every other timer.
+    // Nor one submitted by a pool thread: only pool threads can make space, so it might wait forever.
+    // Delayed tasks that are rejected go to the DelayedTaskOverflow instead.
+    private static final class WaitForSpacePolicy implements RejectedExecutionHandler {
+        private final long maxWaitMs;
+
+        WaitForSpacePolicy(long maxWaitMs) { this.maxWaitMs = maxWaitMs; }
+
+        @Override
+        public void rejectedExecution(@NonNull Runnable task, @NonNull ThreadPoolExecutor executor) {
+            if ((maxWaitMs > 0) && (!executor.isShutdown()) && mayWait()) {
+                try {
+                    if (executor.getQueue().offer(task, maxWaitMs, TimeUnit.MILLISECONDS)) { return; }
+                }
+                catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+            }
+            throw new RejectedExecutionException("Task " + task + " rejected from " + executor);
+        }
+
+        private boolean mayWait() {
+            return (Looper.myLooper() != Looper.getMainLooper())
+                && (!TimerWheel.isTimerThread())
+                && (!isWorkerThread());
+        }
+    }
+
+    // A delayed task that can be cancelled at any time before it starts running:
+    // if it has already been handed to its executor, it becomes a no-op.
+    private final class CancellableTask implements Cancellable, Runnable {
+        @Nullable
+        private final Object owner;
+        @NonNull
+        private final Object overflowKey;
+        @NonNull
         private final Runnable task;
+        private final AtomicBoolean cancelled = new AtomicBoolean(false);
+        private volatile Cancellable timeout;
 
-        private CancellableTask(@NonNull Handler handler, @NonNull Runnable task) {
-            Preconditions.assertNotNull(handler, "handler");
-            Preconditions.assertNotNull(task, "task");
-            this.handler = handler;
+        CancellableTask(@Nullable Object owner, @Nullable Object key, @NonNull Runnable task) {
+            this.owner = owner;
+            this.overflowKey = (key != null) ? key : this;
             this.task = task;
         }
 
         @Override
-        public void cancel() { handler.removeCallbacks(task); }
-    }
+        public void run() {
+            if (cancelled.getAndSet(true)) { return; }
+            unregisterTask(this);
+            task.run();
+        }
+
+        @Override
+        public void cancel() {
+            if (cancelled.getAndSet(true)) { return; }
+            final Cancellable t = timeout;
+            if (t != null) { t.cancel(); }
+            overflow.remove(overflowKey, this);
+            unregisterTask(this);
+        }
 
+        @NonNull
+        @Override
+        public String toString() { return "CancellableTask{" + owner + ", " + task + "}"; }
+    }
 
     //---------------------------------------------
     // Instance variables
     //---------------------------------------------
+    private final InstrumentedThreadPoolExecutor baseExecutor;
     private final Handler mainHandler;
+    private final CoalescingMainExecutor coalescingMainExecutor;
     private final Executor mainThreadExecutor;
+    private final TimerWheel timer;
+    private final DelayedTaskOverflow overflow;
+
+    private final LatencyHistogram mainWaitTimes = new LatencyHistogram();
+    private final LatencyHistogram mainRunTimes = new LatencyHistogram();
+
+    // Weakly held: a serial executor that is no longer in use simply disappears from the statistics.
+    @GuardedBy("serialExecutors")
+    private final Set<FairSerialExecutor> serialExecutors = Collections.newSetFromMap(new WeakHashMap<>());
+    private final AtomicInteger serialExecutorId = new AtomicInteger(0);
+
+    @GuardedBy("ownedTasks")
+    private final Map<Object, Set<CancellableTask>> ownedTasks = new HashMap<>();
+
+    private volatile Executor mainTarget;
+    private volatile boolean instrumented;
 
     //---------------------------------------------
     // Constructor
     //---------------------------------------------
-    public AndroidExecutionService() {
-        super((ThreadPoolExecutor) AsyncTask.THREAD_POOL_EXECUTOR);
+    public AndroidExecutionService() { this(DEFAULT_MAX_QUEUE_SIZE, DEFAULT_MAX_WAIT_MS); }
+
+    /**
+     * Create an execution service with a custom queue bound and backpressure policy.
+     * Install it with CouchbaseLiteInternal.setExecutionService, before any other use of CouchbaseLite.
+     * <p>
+     * When the pool's threads are all busy and its queue is full, a task submitted from a background thread
+     * waits for up to maxWaitMs for space in the queue.  If there is still no space, or if the task was submitted
+     * from the main thread, it is rejected.
+     *
+     * @param maxQueueSize the maximum number of tasks waiting for a thread.
+     * @param maxWaitMs    the longest time a submitter may wait for space in the queue.  0 never waits.
+     */
+    public AndroidExecutionService(int maxQueueSize, long maxWaitMs) {
+        this(createBaseExecutor(maxQueueSize, maxWaitMs));
+    }
+
+    private AndroidExecutionService(@NonNull InstrumentedThreadPoolExecutor baseExecutor) {
+        super(baseExecutor);
+        this.baseExecutor = baseExecutor;
         mainHandler = new Handler(Looper.getMainLooper());
-        mainThreadExecutor = mainHandler::post;
+        mainTarget = mainHandler::post;
+        mainThreadExecutor = this::executeOnMain;
+        coalescingMainExecutor = new CoalescingMainExecutor(mainHandler);
+        timer = new TimerWheel();
+        overflow = new DelayedTaskOverflow(timer);
     }
 
     //---------------------------------------------
@@ -78,10 +226,98 @@ public final class AndroidExecutionService extends AbstractExecutionService {
     public Executor getMainExecutor() { return mainThreadExecutor; }
 
     /**
-     * This runs a task on Android's main thread for just long enough to enough to enqueue the passed task
-     * on the passed executor.  It occupies space in the main looper's message queue
-     * but takes no significant time processing, there.
-     * If the target executor refuses the task, it is just dropped on the floor.
+     * Each serial executor (there is typically one per database) preserves the order of its own tasks,
+     * but shares the base thread pool fairly with all of the others: see FairSerialExecutor.
+     *
+     * @return a new serial executor.
+     */
+    @NonNull
+    @Override
+    public CloseableExecutor getSerialExecutor() {
+        final FairSerialExecutor executor
+            = new FairSerialExecutor("serial-" + serialExecutorId.incrementAndGet(), baseExecutor);
+        synchronized (serialExecutors) {
+            executor.setInstrumented(instrumented);
+            serialExecutors.add(executor);
+        }
+        return executor;
+    }
+
+    /**
+     * Opt in to running main thread tasks in batches, once per frame.
+     * By default, each task posted to the main executor is a separate looper message.
+     * Tasks already posted to the main executor are not affected by this call.
+     *
+     * @param coalesce true to batch main thread tasks.
+     */
+    public void setCoalesceMainThreadTasks(boolean coalesce) {
+        mainTarget = (coalesce) ? coalescingMainExecutor : mainHandler::post;
+    }
+
+    /**
+     * The coalescing main executor, whether or not it is in use: see setCoalesceMainThreadTasks.
+     *
+     * @return the coalescing main executor, for its statistics.
+     */
+    @NonNull
+    public CoalescingMainExecutor getCoalescingMainExecutor() { return coalescingMainExecutor; }
+
+    /**
+     * Turn on the collection of timing statistics for the main executor, the serial executors and the thread pool.
+     * The overhead, when instrumentation is off, is a volatile read per task.
+     *
+     * @param instrumented true to collect timing statistics.
+     */
+    public void setInstrumented(boolean instrumented) {
+        synchronized (serialExecutors) {
+            this.instrumented = instrumented;
+            for (FairSerialExecutor executor: serialExecutors) { executor.setInstrumented(instrumented); }
+        }
+        baseExecutor.setInstrumented(instrumented);
+    }
+
+    /**
+     * Statistics for the thread pool that backs all serial and concurrent executors.
+     * The pool runs serial executors' tasks in slices: each slice counts as one task.
+     * For the times of the serial tasks themselves, see getSerialExecutorStats.
+     *
+     * @return a snapshot of the pool's statistics.
+     */
+    @NonNull
+    public ExecutionStats getPoolStats() { return baseExecutor.getStats(); }
+
+    /**
+     * Statistics for each of the serial executors still in use.
+     * A task's wait time includes the time it spent queued behind earlier tasks on the same executor.
+     *
+     * @return a snapshot of the statistics for each serial executor.
+     */
+    @NonNull
+    public List<ExecutionStats> getSerialExecutorStats() {
+        final List<FairSerialExecutor> executors;
+        synchronized (serialExecutors) { executors = new ArrayList<>(serialExecutors); }
+
+        final List<ExecutionStats> stats = new ArrayList<>(executors.size());
+        for (FairSerialExecutor executor: executors) { stats.add(executor.getStats()); }
+        return stats;
+    }
+
+    /**
+     * Statistics for the main executor.  Queue depth is not available for the main looper.
+     *
+     * @return a snapshot of the main executor's statistics.
+     */
+    @NonNull
+    public ExecutionStats getMainThreadStats() {
+        return new ExecutionStats("main", 0, 0, mainWaitTimes.snapshot(), mainRunTimes.snapshot());
+    }
+
+    /**
+     * This runs a task on the timer thread for just long enough to enqueue the passed task
+     * on the passed executor.  It does not use the main looper.
+     * Timing is coarse: the task may be enqueued as much as one timer tick late.
+     * If the target executor refuses the task, it is held and offered to the executor again,
+     * with exponential backoff: see DelayedTaskOverflow.  It is dropped only if the holding area is full.
      *
      * @param delayMs  delay before posting the task.  There may be additional queue delays in the executor.
      * @param executor an executor on which to execute the task.
@@ -91,27 +327,108 @@ public final class AndroidExecutionService extends AbstractExecutionService {
     @NonNull
     @Override
     public Cancellable postDelayedOnExecutor(long delayMs, @NonNull Executor executor, @NonNull Runnable task) {
+        return postDelayedOnExecutor(null, delayMs, executor, task);
+    }
+
+    /**
+     * Just like postDelayedOnExecutor, above, except that the task belongs to the passed owner.
+     * All of an owner's tasks can be cancelled at once: see cancelTasksForOwner.
+     *
+     * @param owner    the owner of the task (a Database, for instance). May be null.
+     * @param delayMs  delay before posting the task.  There may be additional queue delays in the executor.
+     * @param executor an executor on which to execute the task.
+     * @param task     the task to be executed.
+     * @return a cancellable task
+     */
+    @NonNull
+    public Cancellable postDelayedOnExecutor(
+        @Nullable Object owner,
+        long delayMs,
+        @NonNull Executor executor,
+        @NonNull Runnable task) {
+        return postDelayedOnExecutor(owner, null, delayMs, executor, task);
+    }
+
+    /**
+     * Just like postDelayedOnExecutor, above, except that the task has a merge key.
+     * If the target executor rejects the task while another task with the same key is waiting
+     * to be offered to its executor again, only the newer of the two will run: see DelayedTaskOverflow.
+     * A replicator, for instance, might use the same key for all of its retries.
+     *
+     * @param owner    the owner of the task (a Database, for instance). May be null.
+     * @param key      the key for merging rejected tasks.  If null, the task is never merged.
+     * @param delayMs  delay before posting the task.  There may be additional queue delays in the executor.
+     * @param executor an executor on which to execute the task.
+     * @param task     the task to be executed.
+     * @return a cancellable task
+     */
+    @NonNull
+    public Cancellable postDelayedOnExecutor(
+        @Nullable Object owner,
+        @Nullable Object key,
+        long delayMs,
+        @NonNull Executor executor,
+        @NonNull Runnable task) {
         Preconditions.assertNotNull(executor, "executor");
         Preconditions.assertNotNull(task, "task");
 
+        final CancellableTask cancellableTask = new CancellableTask(owner, key, task);
+        registerTask(cancellableTask);
+
+        // If the task is dropped, it will never run: cancel it, so that its owner no longer holds it.
         final Runnable delayedTask = () -> {
-            try { executor.execute(task); }
+            try { executor.execute(cancellableTask); }
             catch (CloseableExecutor.ExecutorClosedException e) {
-                Log.w(LogDomain.DATABASE, "Scheduled on closed executor: " + task + ", " + executor);
+                Log.w(LogDomain.DATABASE, "Scheduled on closed executor: %s, %s", task, executor);
+                cancellableTask.cancel();
             }
             catch (RejectedExecutionException e) {
+                if (overflow.offer(cancellableTask.overflowKey, executor, cancellableTask)) { return; }
+                cancellableTask.cancel();
                 if (!throttled()) { dumpServiceState(executor, "after: " + delayMs, e); }
             }
         };
 
-        mainHandler.postDelayed(delayedTask, delayMs);
+        cancellableTask.timeout = timer.schedule(delayMs, delayedTask);
 
-        return new CancellableTask(mainHandler, delayedTask);
+        return cancellableTask;
     }
 
     /**
-     * Best effort, delete the passed task (obtained from postDelayedOnExecutor, above)
-     * from the wait queue.  If it is already in the Executor, well, there you go.
+     * Cancel all of the passed owner's pending tasks (obtained from postDelayedOnExecutor, above).
+     * This takes time proportional to the number of tasks, no matter how far in the future they are scheduled.
+     *
+     * @param owner the owner whose tasks should be cancelled.
+     * @return the number of tasks cancelled.
+     */
+    public int cancelTasksForOwner(@NonNull Object owner) {
+        Preconditions.assertNotNull(owner, "owner");
+
+        final List<CancellableTask> tasks;
+        synchronized (ownedTasks) {
+            final Set<CancellableTask> owned = ownedTasks.remove(owner);
+            if (owned == null) { return 0; }
+            tasks = new ArrayList<>(owned);
+        }
+
+        for (CancellableTask task: tasks) { task.cancel(); }
+
+        return tasks.size();
+    }
+
+    /**
+     * Statistics for delayed tasks that were rejected by their target executors.
+     *
+     * @return the holding area for rejected delayed tasks.
+     */
+    @NonNull
+    public DelayedTaskOverflow getDelayedTaskOverflow() { return overflow; }
+
+    /**
+     * Cancel the passed task (obtained from postDelayedOnExecutor, above).
+     * If it is still waiting for its delay to expire, it is removed from the wait queue, in constant time.
+     * If it is already in the Executor, it is not removed but will do nothing when it is run.
+     * A task that has already started cannot be cancelled.
      *
      * @param cancellableTask returned by a previous call to postDelayedOnExecutor.
      */
@@ -120,4 +437,54 @@ public final class AndroidExecutionService extends AbstractExecutionService {
         Preconditions.assertNotNull(cancellableTask, "cancellableTask");
         cancellableTask.cancel();
     }
+
+    //---------------------------------------------
+    // Private methods
+    //---------------------------------------------
+
+    private void registerTask(@NonNull CancellableTask task) {
+        if (task.owner == null) { return; }
+        synchronized (ownedTasks) {
+            Set<CancellableTask> owned = ownedTasks.get(task.owner);
+            if (owned == null) {
+                owned = Collections.newSetFromMap(new IdentityHashMap<>());
+                ownedTasks.put(task.owner, owned);
+            }
+            owned.add(task);
+        }
+    }
+
+    private void unregisterTask(@NonNull CancellableTask task) {
+        if (task.owner == null) { return; }
+        synchronized (ownedTasks) {
+            final Set<CancellableTask> owned = ownedTasks.get(task.owner);
+            if (owned == null) { return; }
+            owned.remove(task);
+            if (owned.isEmpty()) { ownedTasks.remove(task.owner); }
+        }
+    }
+
+    private void executeOnMain(@NonNull Runnable task) {
+        mainTarget.execute(
+            (!instrumented) ? task : new InstrumentedThreadPoolExecutor.TimedTask(task, mainWaitTimes, mainRunTimes));
+    }
+
+    // CBL owns its thread pool: sharing AsyncTask.THREAD_POOL_EXECUTOR with the application
+    // means that a burst of application tasks can starve change notifications and replicator callbacks.
+    @NonNull
+    private static InstrumentedThreadPoolExecutor createBaseExecutor(int maxQueueSize, long maxWaitMs) {
+        if (maxQueueSize <= 0) { throw new IllegalArgumentException("Max queue size must be positive"); }
+        if (maxWaitMs < 0) { throw new IllegalArgumentException("Max wait must not be negative"); }
+
+        final InstrumentedThreadPoolExecutor executor = new InstrumentedThreadPoolExecutor(
+            "pool",
+            POOL_SIZE,
+            MAX_POOL_SIZE,
+            KEEP_ALIVE_SECS,
+            new LinkedBlockingQueue<>(maxQueueSize),
+            new CBLThreadFactory(),
+            new WaitForSpacePolicy(maxWaitMs));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
 }
@@ -0,0 +1,134 @@
+//
+// Copyright (c) 2020 Couchbase, Inc All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.couchbase.lite.internal;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.view.Choreographer;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.couchbase.lite.internal.utils.Preconditions;
+
+
+/**
+ * A main thread executor that runs the tasks posted to it in batches, once per frame.
+ * Instead of a looper message per task, there is a single Choreographer callback per frame.
+ * Each batch runs only until its time budget is exhausted: any remaining tasks run in the next frame.
+ */
+public final class CoalescingMainExecutor implements Executor {
+    private static final long DEFAULT_FRAME_BUDGET_MS = 4;
+
+    @NonNull
+    private final Handler mainHandler;
+    private final long frameBudgetNanos;
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    private final AtomicLong drains = new AtomicLong(0);
+    private final AtomicLong drained = new AtomicLong(0);
+    private final AtomicLong overruns = new AtomicLong(0);
+
+    // Choreographer.getInstance() must be called on the main thread.
+    private final Choreographer.FrameCallback drainer = this::drain;
+    private final Runnable requestFrame = () -> Choreographer.getInstance().postFrameCallback(drainer);
+
+    CoalescingMainExecutor(@NonNull Handler mainHandler) {
+        this(mainHandler, DEFAULT_FRAME_BUDGET_MS);
+    }
+
+    CoalescingMainExecutor(@NonNull Handler mainHandler, long frameBudgetMs) {
+        Preconditions.assertNotNull(mainHandler, "mainHandler");
+        this.mainHandler = mainHandler;
+        this.frameBudgetNanos = TimeUnit.MILLISECONDS.toNanos(frameBudgetMs);
+    }
+
+    @Override
+    public void execute(@NonNull Runnable task) {
+        Preconditions.assertNotNull(task, "task");
+
+        tasks.offer(task);
+
+        if (!scheduled.compareAndSet(false, true)) { return; }
+
+        if (Looper.myLooper() == mainHandler.getLooper()) { requestFrame.run(); }
+        else { mainHandler.post(requestFrame); }
+    }
+
+    /**
+     * @return the number of frames in which tasks were run.
+     */
+    public long getDrainCount() { return drains.get(); }
+
+    /**
+     * @return the total number of tasks run.  Divide by the drain count for the average tasks per frame.
+     */
+    public long getTaskCount() { return drained.get(); }
+
+    /**
+     * @return the number of frames that exhausted their time budget and pushed tasks to the next frame.
+     */
+    public long getOverrunCount() { return overruns.get(); }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "CoalescingMainExecutor{" + drains.get() + ", " + drained.get() + ", " + overruns.get() + "}";
+    }
+
+    private void drain(long frameTimeNanos) {
+        final long deadline = System.nanoTime() + frameBudgetNanos;
+
+        int n = 0;
+        boolean outOfTime = false;
+        try {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                n++;
+                task.run();
+                if (System.nanoTime() >= deadline) {
+                    outOfTime = true;
+                    break;
+                }
+            }
+        }
+        // a failing task will still crash the main thread: just make sure the queue doesn't stall
+        finally {
+            drains.incrementAndGet();
+            drained.addAndGet(n);
+
+            if (!tasks.isEmpty()) {
+                // tasks that arrived after the queue was emptied are not an overrun
+                if (outOfTime) { overruns.incrementAndGet(); }
+                Choreographer.getInstance().postFrameCallback(drainer);
+            }
+            else {
+                scheduled.set(false);
+                // a task may have been added after the queue was found empty but before the flag was cleared
+                if (!tasks.isEmpty() && scheduled.compareAndSet(false, true)) {
+                    Choreographer.getInstance().postFrameCallback(drainer);
+                }
+            }
+        }
+    }
+}
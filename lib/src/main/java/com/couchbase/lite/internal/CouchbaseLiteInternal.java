@@ -16,28 +16,25 @@
 package com.couchbase.lite.internal;
 
 import android.content.Context;
-import android.support.annotation.GuardedBy;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.lang.ref.SoftReference;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
-import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import com.couchbase.lite.BuildConfig;
-import com.couchbase.lite.LogDomain;
-import com.couchbase.lite.R;
 import com.couchbase.lite.internal.core.C4Base;
 import com.couchbase.lite.internal.fleece.MValue;
 import com.couchbase.lite.internal.support.Log;
@@ -60,6 +57,12 @@ public final class CouchbaseLiteInternal {
     private static final String TEMP_DIR_NAME = "CouchbaseLiteTemp";
     private static final String DB_DIR_NAME = ".couchbase";
 
+    private static final String STEP_DIRECTORIES = "directories";
+    private static final String STEP_LIBRARY = "library";
+    private static final String STEP_TMP_DIR = "tmpDir";
+    private static final String STEP_DELEGATE = "delegate";
+    private static final String STEP_LOGGING = "logging";
+
     private static final AtomicReference<ExecutionService> EXECUTION_SERVICE = new AtomicReference<>();
     private static final AtomicReference<SoftReference<Context>> CONTEXT = new AtomicReference<>();
 
@@ -67,12 +70,47 @@ public final class CouchbaseLiteInternal {
 
     private static final Object LOCK = new Object();
 
+    // initialization step name -> elapsed time, in microseconds
+    private static final Map<String, Long> STARTUP_TRACE = new ConcurrentHashMap<>();
+
+    // Null unless an asynchronous initialization has been started.
+    private static volatile Future<?> directoriesReady;
+    private static volatile Future<?> initComplete;
+
     private static volatile boolean debugging = BuildConfig.CBL_DEBUG;
 
-    @GuardedBy("lock")
-    private static String dbDirPath;
-    @GuardedBy("lock")
-    private static volatile String tmpDirPath;
+    // The verified directory configuration.  Readers do not lock: writers hold LOCK and replace the snapshot.
+    private static final AtomicReference<Directories> DIRECTORIES = new AtomicReference<>();
+
+    // Cache key for the default root directory
+    private static final String DEFAULT_ROOT = "\u0000default";
+
+    // Maximum number of root directories for which verified paths are cached.
+    // An application uses only a few: if the cache fills, it is simply cleared.
+    private static final int MAX_CACHED_PATHS = 64;
+
+    /**
+     * An immutable snapshot of the directory configuration.
+     * It also caches the canonical paths verified while it is current: they are discarded
+     * with the snapshot when setupDirectories replaces it.  Lookups do not lock and do not touch the filesystem.
+     */
+    private static final class Directories {
+        @NonNull
+        final String dbDirPath;
+        @NonNull
+        final String tmpDirPath;
+
+        // root directory -> verified canonical path
+        final Map<String, String> dbPaths = new ConcurrentHashMap<>();
+        final Map<String, String> tmpPaths = new ConcurrentHashMap<>();
+
+        Directories(@Nullable String rootDirPath, @NonNull String dbDirPath, @NonNull String tmpDirPath) {
+            this.dbDirPath = dbDirPath;
+            this.tmpDirPath = tmpDirPath;
+            dbPaths.put(getCacheKey(rootDirPath), dbDirPath);
+            tmpPaths.put(getCacheKey(rootDirPath), tmpDirPath);
+        }
+    }
 
     /**
      * Initialize CouchbaseLite library. This method MUST be called before using CouchbaseLite.
@@ -84,23 +122,78 @@ public final class CouchbaseLiteInternal {
         Preconditions.assertNotNull(mValueDelegate, "mValueDelegate");
         Preconditions.assertNotNull(ctxt, "context");
 
-        if (INITIALIZED.getAndSet(true)) { return; }
+        // synchronized with initAsync
+        synchronized (LOCK) {
+            if (INITIALIZED.getAndSet(true)) { return; }
+        }
 
         CONTEXT.set(new SoftReference<>(ctxt.getApplicationContext()));
 
         // Splitting initialization and registration is not really necessary here.
         // Do it to maintain code parity with the Java version, where it is necessary.
-        initDirectories(rootDirectoryPath);
+        trace(STEP_DIRECTORIES, () -> initDirectories(rootDirectoryPath));
 
-        System.loadLibrary(LITECORE_JNI_LIBRARY);
+        trace(STEP_LIBRARY, CouchbaseLiteInternal::loadLibrary);
 
-        if (debugging) { C4Base.debug(); }
+        trace(STEP_TMP_DIR, CouchbaseLiteInternal::setC4TmpDirPath);
+
+        trace(STEP_DELEGATE, () -> MValue.registerDelegate(mValueDelegate));
 
-        setC4TmpDirPath();
+        trace(STEP_LOGGING, () -> Log.initLogging(loadErrorMessages()));
+    }
 
-        MValue.registerDelegate(mValueDelegate);
+    /**
+     * Initialize CouchbaseLite library in the background.
+     * Directory setup and loading the native library run in parallel.
+     * Calls that need a part of the library that is not yet ready block until it is:
+     * finding the database directory, for instance, waits only for directory setup.
+     *
+     * @return a future that completes when initialization is complete.
+     * Its get() method throws an ExecutionException if initialization failed.
+     */
+    @NonNull
+    public static Future<?> initAsync(
+        @NonNull MValue.Delegate mValueDelegate,
+        @Nullable String rootDirectoryPath,
+        @NonNull Context ctxt) {
+        Preconditions.assertNotNull(mValueDelegate, "mValueDelegate");
+        Preconditions.assertNotNull(ctxt, "context");
 
-        Log.initLogging(loadErrorMessages(ctxt));
+        synchronized (LOCK) {
+            if (INITIALIZED.get()) {
+                final Future<?> pending = initComplete;
+                if (pending != null) { return pending; }
+                // initialized synchronously: already complete
+                final FutureTask<?> done = new FutureTask<>(() -> { }, null);
+                done.run();
+                return done;
+            }
+
+            CONTEXT.set(new SoftReference<>(ctxt.getApplicationContext()));
+
+            trace(STEP_DELEGATE, () -> MValue.registerDelegate(mValueDelegate));
+
+            final FutureTask<?> dirs
+                = new FutureTask<>(() -> trace(STEP_DIRECTORIES, () -> initDirectories(rootDirectoryPath)), null);
+
+            final FutureTask<?> core = new FutureTask<>(
+                () -> {
+                    trace(STEP_LIBRARY, CouchbaseLiteInternal::loadLibrary);
+                    await(dirs);
+                    trace(STEP_TMP_DIR, CouchbaseLiteInternal::setC4TmpDirPath);
+                    trace(STEP_LOGGING, () -> Log.initLogging(loadErrorMessages()));
+                },
+                null);
+
+            directoriesReady = dirs;
+            initComplete = core;
+            INITIALIZED.set(true);
+
+            startInitThread(dirs, STEP_DIRECTORIES);
+            startInitThread(core, STEP_LIBRARY);
+
+            return core;
+        }
     }
 
     public static boolean isDebugging() { return debugging; }
@@ -118,15 +211,40 @@ public final class CouchbaseLiteInternal {
         return executionService;
     }
 
+    /**
+     * Replace the execution service.
+     * This is the injection point for alternative implementations, for instance
+     * a virtual-time service that allows testing scheduling behavior without a Looper.
+     * It should be called before any other use of CouchbaseLite: components that have already
+     * obtained the current execution service will continue to use it.
+     *
+     * @param executionService the new execution service.  If null, the default will be created on next use.
+     */
+    public static void setExecutionService(@Nullable ExecutionService executionService) {
+        EXECUTION_SERVICE.set(executionService);
+    }
+
+    /**
+     * Verify that the library has been initialized.
+     * If it is being initialized asynchronously, wait for initialization to complete.
+     */
     public static void requireInit(String message) {
-        if (!INITIALIZED.get()) {
-            throw new IllegalStateException(message + ".  Did you forget to call CouchbaseLite.init()?");
-        }
+        requireInitStarted(message);
+        await(initComplete);
     }
 
+    /**
+     * Get the time taken by each step of initialization.
+     * After an asynchronous initialization, steps may have overlapped.
+     *
+     * @return a map of step names to elapsed time, in microseconds
+     */
+    @NonNull
+    public static Map<String, Long> getStartupTrace() { return new HashMap<>(STARTUP_TRACE); }
+
     @NonNull
     public static Context getContext() {
-        requireInit("Application context not initialized");
+        requireInitStarted("Application context not initialized");
         final SoftReference<Context> contextRef = CONTEXT.get();
 
         final Context ctxt = contextRef.get();
@@ -137,64 +255,142 @@ public final class CouchbaseLiteInternal {
 
     @NonNull
     public static String makeDbPath(@Nullable String rootDir) {
-        requireInit("Can't create DB path");
-        return verifyDir((rootDir != null) ? new File(rootDir) : new File(getContext().getFilesDir(), DB_DIR_NAME));
+        requireInitStarted("Can't create DB path");
+
+        final Directories dirs = DIRECTORIES.get();
+        if (dirs == null) { return verifyDbPath(rootDir); }
+
+        final String key = getCacheKey(rootDir);
+        String path = dirs.dbPaths.get(key);
+        if (path == null) {
+            path = verifyDbPath(rootDir);
+            cachePath(dirs.dbPaths, key, path);
+        }
+
+        return path;
     }
 
     @NonNull
     public static String makeTmpPath(@Nullable String rootDir) {
-        requireInit("Can't create tmp dir path");
-        final File dir = (rootDir != null)
-            ? new File(rootDir, TEMP_DIR_NAME)
-            : getContext().getExternalFilesDir(TEMP_DIR_NAME);
-        if (dir == null) { throw new IllegalStateException("Tmp dir root is null"); }
-        return verifyDir(dir);
+        requireInitStarted("Can't create tmp dir path");
+
+        final Directories dirs = DIRECTORIES.get();
+        if (dirs == null) { return verifyTmpPath(rootDir); }
+
+        final String key = getCacheKey(rootDir);
+        String path = dirs.tmpPaths.get(key);
+        if (path == null) {
+            path = verifyTmpPath(rootDir);
+            cachePath(dirs.tmpPaths, key, path);
+        }
+
+        return path;
     }
 
+    /**
+     * The paths returned by makeDbPath and makeTmpPath are verified once, and then cached:
+     * the directories are not checked again on each call.  If an operation fails because one of them
+     * has been deleted, call this method and retry: the next call to makeDbPath or makeTmpPath
+     * will verify (and, if necessary, re-create) the directory.
+     *
+     * @param rootDir the root directory passed to makeDbPath or makeTmpPath
+     */
+    public static void invalidatePaths(@Nullable String rootDir) {
+        final Directories dirs = DIRECTORIES.get();
+        if (dirs == null) { return; }
+
+        final String key = getCacheKey(rootDir);
+        dirs.dbPaths.remove(key);
+        dirs.tmpPaths.remove(key);
+    }
+
+    /**
+     * Change the root directory.  This re-verifies all directories: paths cached
+     * by makeDbPath and makeTmpPath are discarded.
+     */
     public static void setupDirectories(@Nullable String rootDirPath) {
         requireInit("Can't set root directory");
 
         synchronized (LOCK) {
             // remember the current tmp dir
-            final String tmpPath = tmpDirPath;
+            final Directories prev = DIRECTORIES.get();
 
             initDirectories(rootDirPath);
 
             // if the temp dir has changed, tell C4Base
-            if (!Objects.equals(tmpPath, tmpDirPath)) { setC4TmpDirPath(); }
+            if ((prev == null) || !Objects.equals(prev.tmpDirPath, DIRECTORIES.get().tmpDirPath)) {
+                setC4TmpDirPath();
+            }
         }
     }
 
     @NonNull
     public static String getDbDirectoryPath() {
-        requireInit("Database directory not initialized");
-        synchronized (LOCK) { return dbDirPath; }
+        requireInitStarted("Database directory not initialized");
+        await(directoriesReady);
+        return getDirectories().dbDirPath;
     }
 
     @NonNull
     public static String getTmpDirectoryPath() {
-        requireInit("Database directory not initialized");
-        synchronized (LOCK) { return tmpDirPath; }
+        requireInitStarted("Database directory not initialized");
+        await(directoriesReady);
+        return getDirectories().tmpDirPath;
     }
 
     @VisibleForTesting
-    public static void reset() { INITIALIZED.set(false); }
+    public static void reset() {
+        synchronized (LOCK) {
+            directoriesReady = null;
+            initComplete = null;
+            INITIALIZED.set(false);
+        }
+    }
 
+    /**
+     * The error messages are compiled into the library, from errors.json, by the build.
+     *
+     * @return a read-only map of error names to messages.
+     */
     @VisibleForTesting
     @NonNull
-    public static Map<String, String> loadErrorMessages(@NonNull Context ctxt) {
-        final Map<String, String> errorMessages = new HashMap<>();
+    public static Map<String, String> loadErrorMessages() { return ErrorMessageTable.INSTANCE; }
+
+    private static void requireInitStarted(String message) {
+        if (!INITIALIZED.get()) {
+            throw new IllegalStateException(message + ".  Did you forget to call CouchbaseLite.init()?");
+        }
+    }
+
+    // Wait for a step of an asynchronous initialization, if there is one
+    private static void await(@Nullable Future<?> step) {
+        if (step == null) { return; }
 
-        try (InputStream is = ctxt.getResources().openRawResource(R.raw.errors)) {
-            final JSONObject root = new JSONObject(new Scanner(is, "UTF-8").useDelimiter("\\A").next());
-            final Iterable<String> errors = root::keys;
-            for (String error : errors) { errorMessages.put(error, root.getString(error)); }
+        try { step.get(); }
+        catch (ExecutionException e) {
+            throw new IllegalStateException("CouchbaseLite initialization failed", e.getCause());
         }
-        catch (IOException | JSONException e) {
-            Log.e(LogDomain.DATABASE, "Failed to load error messages!", e);
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for CouchbaseLite initialization", e);
         }
+    }
+
+    private static void startInitThread(@NonNull Runnable step, @NonNull String name) {
+        final Thread thread = new Thread(step, "CBL-init-" + name);
+        thread.setDaemon(true);
+        thread.start();
+    }
 
-        return errorMessages;
+    private static void trace(@NonNull String step, @NonNull Runnable task) {
+        final long start = System.nanoTime();
+        try { task.run(); }
+        finally { STARTUP_TRACE.put(step, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start)); }
+    }
+
+    private static void loadLibrary() {
+        System.loadLibrary(LITECORE_JNI_LIBRARY);
+        if (debugging) { C4Base.debug(); }
     }
 
     @NonNull
@@ -208,17 +404,44 @@ public final class CouchbaseLiteInternal {
         throw new IllegalStateException("Cannot create or access directory at " + dir, err);
     }
 
+    @NonNull
+    private static String verifyDbPath(@Nullable String rootDir) {
+        return verifyDir((rootDir != null) ? new File(rootDir) : new File(getContext().getFilesDir(), DB_DIR_NAME));
+    }
+
+    @NonNull
+    private static String verifyTmpPath(@Nullable String rootDir) {
+        final File dir = (rootDir != null)
+            ? new File(rootDir, TEMP_DIR_NAME)
+            : getContext().getExternalFilesDir(TEMP_DIR_NAME);
+        if (dir == null) { throw new IllegalStateException("Tmp dir root is null"); }
+        return verifyDir(dir);
+    }
+
+    private static void cachePath(@NonNull Map<String, String> cache, @NonNull String key, @NonNull String path) {
+        if (cache.size() >= MAX_CACHED_PATHS) { cache.clear(); }
+        cache.put(key, path);
+    }
+
+    @NonNull
+    private static String getCacheKey(@Nullable String rootDir) { return (rootDir != null) ? rootDir : DEFAULT_ROOT; }
+
+    @NonNull
+    private static Directories getDirectories() {
+        final Directories dirs = DIRECTORIES.get();
+        if (dirs == null) { throw new IllegalStateException("Directories not initialized"); }
+        return dirs;
+    }
+
+    // Always verifies: does not use cached paths.
     private static void initDirectories(@Nullable String rootDirPath) {
-        final String dbPath = makeDbPath(rootDirPath);
-        final String tmpPath = makeTmpPath(rootDirPath);
+        final String dbPath = verifyDbPath(rootDirPath);
+        final String tmpPath = verifyTmpPath(rootDirPath);
 
-        synchronized (LOCK) {
-            tmpDirPath = tmpPath;
-            dbDirPath = dbPath;
-        }
+        synchronized (LOCK) { DIRECTORIES.set(new Directories(rootDirPath, dbPath, tmpPath)); }
     }
 
     private static void setC4TmpDirPath() {
-        synchronized (LOCK) { C4Base.setTempDir(tmpDirPath); }
+        synchronized (LOCK) { C4Base.setTempDir(getDirectories().tmpDirPath); }
     }
 }
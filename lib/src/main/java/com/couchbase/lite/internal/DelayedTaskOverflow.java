@@ -0,0 +1,216 @@
+//
+// Copyright (c) 2020 Couchbase, Inc All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.couchbase.lite.internal;
+
+import android.support.annotation.GuardedBy;
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.couchbase.lite.LogDomain;
+import com.couchbase.lite.internal.support.Log;
+
+
+/**
+ * Holding area for delayed tasks that their target executor rejected.
+ * Rather than dropping them, it offers them to their executors again, backing off exponentially
+ * while the executors continue to refuse them.
+ * <p>
+ * Tasks are keyed: if a task is rejected while another with the same key is already waiting here,
+ * the two are merged, so that only the newer one will run.  Callers choose the key: a replicator,
+ * for instance, can use one key for all of its retries.  The holding area is bounded:
+ * when it is full, new tasks are dropped, as they were before this class existed.
+ * <p>
+ * Tasks are resubmitted outside the lock: an executor that takes a while to accept a task
+ * does not hold up callers that are offering or removing other tasks.
+ */
+public final class DelayedTaskOverflow {
+    private static final class Entry {
+        @NonNull
+        final Object key;
+        @NonNull
+        final Executor executor;
+        @NonNull
+        final Runnable task;
+
+        Entry(@NonNull Object key, @NonNull Executor executor, @NonNull Runnable task) {
+            this.key = key;
+            this.executor = executor;
+            this.task = task;
+        }
+    }
+
+    private static final int MAX_TASKS = 256;
+    private static final long MIN_BACKOFF_MS = 10;
+    private static final long MAX_BACKOFF_MS = 1000;
+
+    @NonNull
+    private final TimerWheel timer;
+
+    @GuardedBy("tasks")
+    private final Map<Object, Entry> tasks = new LinkedHashMap<>();
+    @GuardedBy("tasks")
+    private long backoffMs;
+    @GuardedBy("tasks")
+    private boolean scheduled;
+
+    private final AtomicLong overflowed = new AtomicLong(0);
+    private final AtomicLong merged = new AtomicLong(0);
+    private final AtomicLong requeued = new AtomicLong(0);
+    private final AtomicLong dropped = new AtomicLong(0);
+
+    DelayedTaskOverflow(@NonNull TimerWheel timer) { this.timer = timer; }
+
+    /**
+     * Hold a rejected task for re-submission.
+     *
+     * @param key      tasks with the same key are merged.
+     * @param executor the executor that rejected the task.
+     * @param task     the rejected task.
+     * @return false if there was no room for the task: it has been dropped.
+     */
+    boolean offer(@NonNull Object key, @NonNull Executor executor, @NonNull Runnable task) {
+        final Entry prev;
+        synchronized (tasks) {
+            prev = tasks.get(key);
+            if ((prev == null) && (tasks.size() >= MAX_TASKS)) {
+                dropped.incrementAndGet();
+                return false;
+            }
+
+            tasks.put(key, new Entry(key, executor, task));
+
+            if (prev == null) {
+                overflowed.incrementAndGet();
+                if (!scheduled) {
+                    backoffMs = MIN_BACKOFF_MS;
+                    scheduleRetry();
+                }
+            }
+        }
+
+        if (prev != null) {
+            merged.incrementAndGet();
+            // the older task will never run: let it clean up
+            if (prev.task instanceof ExecutionService.Cancellable) {
+                ((ExecutionService.Cancellable) prev.task).cancel();
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Remove a task (one that has been cancelled, for instance) from the holding area.
+     * Does nothing if the task with the passed key is not the passed task.
+     *
+     * @param key  the key with which the task was offered.
+     * @param task the task.
+     */
+    void remove(@NonNull Object key, @NonNull Runnable task) {
+        synchronized (tasks) {
+            final Entry entry = tasks.get(key);
+            if ((entry != null) && (entry.task == task)) { tasks.remove(key); }
+        }
+    }
+
+    /**
+     * @return the number of tasks currently waiting to be resubmitted.
+     */
+    public int getDepth() {
+        synchronized (tasks) { return tasks.size(); }
+    }
+
+    /**
+     * @return the number of tasks that have been put in the holding area.
+     */
+    public long getOverflowCount() { return overflowed.get(); }
+
+    /**
+     * @return the number of rejected tasks that were already in the holding area.
+     */
+    public long getMergeCount() { return merged.get(); }
+
+    /**
+     * @return the number of tasks that were successfully resubmitted to their executors.
+     */
+    public long getRequeueCount() { return requeued.get(); }
+
+    /**
+     * @return the number of tasks that were lost because the holding area was full or the executor was closed.
+     */
+    public long getDropCount() { return dropped.get(); }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "DelayedTaskOverflow{" + getDepth() + ", " + overflowed.get() + ", " + merged.get()
+            + ", " + requeued.get() + ", " + dropped.get() + "}";
+    }
+
+    @GuardedBy("tasks")
+    private void scheduleRetry() {
+        scheduled = true;
+        timer.schedule(backoffMs, this::retry);
+    }
+
+    // Resubmit tasks, oldest first, until an executor refuses one.
+    private void retry() {
+        final List<Entry> ready;
+        synchronized (tasks) { ready = new ArrayList<>(tasks.values()); }
+
+        boolean refused = false;
+        for (Entry entry: ready) {
+            try {
+                entry.executor.execute(entry.task);
+                requeued.incrementAndGet();
+            }
+            catch (ExecutionService.CloseableExecutor.ExecutorClosedException e) {
+                Log.w(LogDomain.DATABASE, "Rescheduled on closed executor: %s", entry.task);
+                dropped.incrementAndGet();
+                // the task will never run: let it clean up
+                if (entry.task instanceof ExecutionService.Cancellable) {
+                    ((ExecutionService.Cancellable) entry.task).cancel();
+                }
+            }
+            catch (RejectedExecutionException e) {
+                refused = true;
+                break;
+            }
+
+            // If the entry was replaced while it was being resubmitted, keep its replacement
+            synchronized (tasks) {
+                if (tasks.get(entry.key) == entry) { tasks.remove(entry.key); }
+            }
+        }
+
+        synchronized (tasks) {
+            if (tasks.isEmpty()) {
+                scheduled = false;
+                return;
+            }
+
+            backoffMs = (!refused) ? MIN_BACKOFF_MS : Math.min(backoffMs * 2, MAX_BACKOFF_MS);
+            scheduleRetry();
+        }
+    }
+}
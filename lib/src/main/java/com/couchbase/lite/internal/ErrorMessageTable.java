@@ -0,0 +1,76 @@
+//
+// Copyright (c) 2020 Couchbase, Inc All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.couchbase.lite.internal;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+
+/**
+ * A read-only Map view of the error message table that the build generates from errors.json.
+ * Looking up a message allocates nothing: a message is not loaded until it is first looked up.
+ * Only iteration creates objects.
+ */
+final class ErrorMessageTable extends AbstractMap<String, String> {
+    static final ErrorMessageTable INSTANCE = new ErrorMessageTable();
+
+    private final Set<Entry<String, String>> entries = new AbstractSet<Entry<String, String>>() {
+        @Override
+        public int size() { return ErrorMessageData.KEYS.length; }
+
+        @NonNull
+        @Override
+        public Iterator<Entry<String, String>> iterator() {
+            return new Iterator<Entry<String, String>>() {
+                private int next;
+
+                @Override
+                public boolean hasNext() { return next < ErrorMessageData.KEYS.length; }
+
+                @Override
+                public Entry<String, String> next() {
+                    if (!hasNext()) { throw new NoSuchElementException(); }
+                    final String key = ErrorMessageData.KEYS[next++];
+                    return new SimpleImmutableEntry<>(key, ErrorMessageData.get(key));
+                }
+            };
+        }
+    };
+
+    private ErrorMessageTable() { }
+
+    @Nullable
+    @Override
+    public String get(@Nullable Object key) {
+        return (!(key instanceof String)) ? null : ErrorMessageData.get((String) key);
+    }
+
+    @Override
+    public boolean containsKey(@Nullable Object key) { return get(key) != null; }
+
+    @Override
+    public int size() { return ErrorMessageData.KEYS.length; }
+
+    @NonNull
+    @Override
+    public Set<Entry<String, String>> entrySet() { return entries; }
+}
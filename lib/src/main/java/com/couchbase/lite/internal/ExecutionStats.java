@@ -0,0 +1,89 @@
+//
+// Copyright (c) 2020 Couchbase, Inc All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.couchbase.lite.internal;
+
+import android.support.annotation.NonNull;
+
+import java.util.Locale;
+
+
+/**
+ * A point-in-time snapshot of the statistics for one of CBL's executors.
+ * Wait time is the time from when a task is enqueued until it starts running.
+ * Times are in microseconds.  Percentiles are upper bounds, accurate to within 12.5%.
+ * <p>
+ * Timing statistics are collected only while instrumentation is enabled:
+ * see AndroidExecutionService.setInstrumented.  Queue depth and reject count are always available.
+ */
+public final class ExecutionStats {
+    @NonNull
+    private final String name;
+    private final int queueDepth;
+    private final long rejectCount;
+    @NonNull
+    private final LatencyHistogram.Snapshot waitTimes;
+    @NonNull
+    private final LatencyHistogram.Snapshot runTimes;
+
+    ExecutionStats(
+        @NonNull String name,
+        int queueDepth,
+        long rejectCount,
+        @NonNull LatencyHistogram.Snapshot waitTimes,
+        @NonNull LatencyHistogram.Snapshot runTimes) {
+        this.name = name;
+        this.queueDepth = queueDepth;
+        this.rejectCount = rejectCount;
+        this.waitTimes = waitTimes;
+        this.runTimes = runTimes;
+    }
+
+    @NonNull
+    public String getName() { return name; }
+
+    public int getQueueDepth() { return queueDepth; }
+
+    public long getRejectCount() { return rejectCount; }
+
+    public long getTaskCount() { return runTimes.getCount(); }
+
+    public long getMaxWaitMicros() { return waitTimes.getMaxMicros(); }
+
+    public long getWaitPercentileMicros(double percentile) { return waitTimes.getPercentileMicros(percentile); }
+
+    public long getMaxRunMicros() { return runTimes.getMaxMicros(); }
+
+    public long getRunPercentileMicros(double percentile) { return runTimes.getPercentileMicros(percentile); }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return String.format(
+            Locale.ENGLISH,
+            "ExecutionStats{%s: queue %d, rejects %d, tasks %d, "
+                + "wait p50/p99/max %d/%d/%dus, run p50/p99/max %d/%d/%dus}",
+            name,
+            queueDepth,
+            rejectCount,
+            getTaskCount(),
+            getWaitPercentileMicros(50),
+            getWaitPercentileMicros(99),
+            getMaxWaitMicros(),
+            getRunPercentileMicros(50),
+            getRunPercentileMicros(99),
+            getMaxRunMicros());
+    }
+}
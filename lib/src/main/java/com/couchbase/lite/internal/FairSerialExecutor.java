@@ -0,0 +1,194 @@
+//
+// Copyright (c) 2020 Couchbase, Inc All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.couchbase.lite.internal;
+
+import android.support.annotation.GuardedBy;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.couchbase.lite.LogDomain;
+import com.couchbase.lite.internal.support.Log;
+import com.couchbase.lite.internal.utils.Preconditions;
+
+
+/**
+ * A serial executor that shares a thread pool with many others.
+ * Tasks run in the order in which they were submitted, never more than one at a time.
+ * <p>
+ * While it has work, the executor occupies at most one of the pool's threads,
+ * and it gives that thread back after each time slice: its remaining tasks go to the back of the pool's queue.
+ * Whichever pool thread is free next picks them up.  A busy executor (a hot database, for instance)
+ * cannot, therefore, monopolize the pool and delay the executors that share it.
+ * <p>
+ * When instrumented, the executor times each of its own tasks: wait time runs from the call to execute.
+ * The pool's statistics cannot do this: to the pool, a slice of up to 32 tasks is a single task.
+ */
+final class FairSerialExecutor implements ExecutionService.CloseableExecutor {
+    private static final long SLICE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final int MAX_SLICE_TASKS = 32;
+
+    @NonNull
+    private final String name;
+    @NonNull
+    private final Executor pool;
+
+    private final LatencyHistogram waitTimes = new LatencyHistogram();
+    private final LatencyHistogram runTimes = new LatencyHistogram();
+    private final AtomicLong rejects = new AtomicLong(0);
+
+    private volatile boolean instrumented;
+
+    @GuardedBy("this")
+    private final Deque<Runnable> pending = new ArrayDeque<>();
+    @GuardedBy("this")
+    private boolean scheduled;
+    @GuardedBy("this")
+    private boolean stopped;
+
+    FairSerialExecutor(@NonNull Executor pool) { this("serial", pool); }
+
+    FairSerialExecutor(@NonNull String name, @NonNull Executor pool) {
+        Preconditions.assertNotNull(name, "name");
+        Preconditions.assertNotNull(pool, "pool");
+        this.name = name;
+        this.pool = pool;
+    }
+
+    @Override
+    public synchronized void execute(@NonNull Runnable task) {
+        Preconditions.assertNotNull(task, "task");
+
+        if (stopped) { throw new ExecutorClosedException("Executor has been stopped"); }
+
+        pending.addLast(
+            (!instrumented) ? task : new InstrumentedThreadPoolExecutor.TimedTask(task, waitTimes, runTimes));
+        if (scheduled) { return; }
+
+        try { schedule(); }
+        catch (RejectedExecutionException e) {
+            pending.removeLast();
+            rejects.incrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Stop the executor.  Tasks already submitted will run: no new tasks will be accepted.
+     *
+     * @param timeout time to wait for the submitted tasks to complete
+     * @param unit    time unit for the wait
+     * @return true if all submitted tasks have completed
+     */
+    @Override
+    public synchronized boolean stop(long timeout, @NonNull TimeUnit unit) {
+        Preconditions.assertNotNull(unit, "time unit");
+
+        stopped = true;
+
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        try {
+            while (scheduled) {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) { break; }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+        }
+        catch (InterruptedException ignore) { Thread.currentThread().interrupt(); }
+
+        return !scheduled;
+    }
+
+    @NonNull
+    @Override
+    public synchronized String toString() {
+        return "FairSerialExecutor{" + name + ", " + pending.size() + ", " + scheduled + ", " + stopped + "}";
+    }
+
+    void setInstrumented(boolean instrumented) { this.instrumented = instrumented; }
+
+    @NonNull
+    ExecutionStats getStats() {
+        final int queueDepth;
+        synchronized (this) { queueDepth = pending.size(); }
+        return new ExecutionStats(name, queueDepth, rejects.get(), waitTimes.snapshot(), runTimes.snapshot());
+    }
+
+    @GuardedBy("this")
+    private void schedule() {
+        pool.execute(this::runSlice);
+        scheduled = true;
+    }
+
+    private void runSlice() {
+        while (runTasks()) {
+            if (yieldThread()) { return; }
+        }
+    }
+
+    // Run tasks for one time slice.  Return false if there are no more tasks.
+    private boolean runTasks() {
+        final long deadline = System.nanoTime() + SLICE_NANOS;
+        for (int i = 0; i < MAX_SLICE_TASKS; i++) {
+            final Runnable task = nextTask();
+            if (task == null) { return false; }
+
+            try { task.run(); }
+            catch (RuntimeException e) { Log.w(LogDomain.DATABASE, "Serial task failed: %s", e, task); }
+
+            if (System.nanoTime() >= deadline) { break; }
+        }
+        return true;
+    }
+
+    @Nullable
+    private synchronized Runnable nextTask() {
+        final Runnable task = pending.pollFirst();
+        if (task == null) {
+            scheduled = false;
+            notifyAll();
+        }
+        return task;
+    }
+
+    // Give the pool thread back: requeue the remaining tasks at the end of the pool's queue.
+    // Return false if the caller should just keep running them on the current thread.
+    private boolean yieldThread() {
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                scheduled = false;
+                notifyAll();
+                return true;
+            }
+        }
+
+        // Don't hold the lock while resubmitting: the pool may be full, and callers of execute must not wait for it.
+        // While scheduled is set, no one else will submit this executor to the pool.
+        try { pool.execute(this::runSlice); }
+        catch (RejectedExecutionException e) {
+            Log.v(LogDomain.DATABASE, "Pool rejected serial executor: continuing in place: %s", this);
+            return false;
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,102 @@
+//
+// Copyright (c) 2020 Couchbase, Inc All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.couchbase.lite.internal;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A thread pool that, when instrumented, records the wait and run times of its tasks.
+ * When it is not instrumented, the only overhead is a volatile read per task.
+ */
+final class InstrumentedThreadPoolExecutor extends ThreadPoolExecutor {
+    /**
+     * Record the wait and run times for a task.
+     */
+    static final class TimedTask implements Runnable {
+        @NonNull
+        private final Runnable task;
+        @NonNull
+        private final LatencyHistogram waitTimes;
+        @NonNull
+        private final LatencyHistogram runTimes;
+        private final long enqueuedAt;
+
+        TimedTask(@NonNull Runnable task, @NonNull LatencyHistogram waitTimes, @NonNull LatencyHistogram runTimes) {
+            this.task = task;
+            this.waitTimes = waitTimes;
+            this.runTimes = runTimes;
+            this.enqueuedAt = System.nanoTime();
+        }
+
+        @Override
+        public void run() {
+            final long startedAt = System.nanoTime();
+            waitTimes.recordNanos(startedAt - enqueuedAt);
+            try { task.run(); }
+            finally { runTimes.recordNanos(System.nanoTime() - startedAt); }
+        }
+
+        @NonNull
+        @Override
+        public String toString() { return "TimedTask{" + task + "}"; }
+    }
+
+    @NonNull
+    private final String name;
+
+    private final LatencyHistogram waitTimes = new LatencyHistogram();
+    private final LatencyHistogram runTimes = new LatencyHistogram();
+    private final AtomicLong rejects = new AtomicLong(0);
+
+    private volatile boolean instrumented;
+
+    InstrumentedThreadPoolExecutor(
+        @NonNull String name,
+        int poolSize,
+        int maxPoolSize,
+        long keepAliveSecs,
+        @NonNull BlockingQueue<Runnable> queue,
+        @NonNull ThreadFactory threadFactory,
+        @NonNull RejectedExecutionHandler rejectionPolicy) {
+        super(poolSize, maxPoolSize, keepAliveSecs, TimeUnit.SECONDS, queue, threadFactory, rejectionPolicy);
+        this.name = name;
+    }
+
+    @Override
+    public void execute(@NonNull Runnable task) {
+        try { super.execute((!instrumented) ? task : new TimedTask(task, waitTimes, runTimes)); }
+        catch (RejectedExecutionException e) {
+            rejects.incrementAndGet();
+            throw e;
+        }
+    }
+
+    void setInstrumented(boolean instrumented) { this.instrumented = instrumented; }
+
+    @NonNull
+    ExecutionStats getStats() {
+        return new ExecutionStats(name, getQueue().size(), rejects.get(), waitTimes.snapshot(), runTimes.snapshot());
+    }
+}
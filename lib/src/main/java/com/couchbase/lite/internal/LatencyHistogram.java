@@ -0,0 +1,105 @@
+//
+// Copyright (c) 2020 Couchbase, Inc All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.couchbase.lite.internal;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * A lock-free histogram of durations, in microseconds.
+ * Like an HDR histogram, buckets are exponential with linear sub-buckets:
+ * each power of 2 is split into 8 buckets, so any recorded value is accurate to within 12.5%.
+ * Recording is a couple of shifts and an atomic increment.
+ */
+final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 40; // ~12 days, in microseconds
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    static int bucketFor(long micros) {
+        if (micros < SUB_BUCKETS) { return (int) Math.max(0, micros); }
+        final int exp = 63 - Long.numberOfLeadingZeros(micros);
+        if (exp > MAX_EXPONENT) { return BUCKETS - 1; }
+        final int sub = (int) (micros >>> (exp - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return ((exp - SUB_BUCKET_BITS + 1) * SUB_BUCKETS) + sub;
+    }
+
+    // the smallest value that falls into the passed bucket
+    static long lowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS) { return bucket; }
+        final int exp = (bucket / SUB_BUCKETS) + SUB_BUCKET_BITS - 1;
+        final long sub = bucket % SUB_BUCKETS;
+        return (SUB_BUCKETS + sub) << (exp - SUB_BUCKET_BITS);
+    }
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong max = new AtomicLong(0);
+
+    void recordNanos(long nanos) {
+        final long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        counts.incrementAndGet(bucketFor(micros));
+
+        long prev = max.get();
+        while ((micros > prev) && !max.compareAndSet(prev, micros)) { prev = max.get(); }
+    }
+
+    // The snapshot is not atomic: buckets may be updated while it is being taken.
+    @NonNull
+    Snapshot snapshot() {
+        final long[] snap = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) { snap[i] = counts.get(i); }
+        return new Snapshot(snap, max.get());
+    }
+
+    static final class Snapshot {
+        @NonNull
+        private final long[] counts;
+        private final long count;
+        private final long max;
+
+        Snapshot(@NonNull long[] counts, long max) {
+            this.counts = counts;
+            this.max = max;
+
+            long n = 0;
+            for (long c: counts) { n += c; }
+            this.count = n;
+        }
+
+        long getCount() { return count; }
+
+        long getMaxMicros() { return max; }
+
+        // an upper bound for the pth percentile of recorded values
+        long getPercentileMicros(double percentile) {
+            if (count <= 0) { return 0; }
+
+            final long target = Math.max(1, (long) Math.ceil((percentile / 100.0) * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length - 1; i++) {
+                seen += counts[i];
+                if (seen >= target) { return Math.min(lowerBound(i + 1) - 1, max); }
+            }
+
+            return max;
+        }
+    }
+}
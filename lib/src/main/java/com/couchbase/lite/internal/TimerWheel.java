@@ -0,0 +1,257 @@
+//
+// Copyright (c) 2020 Couchbase, Inc All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.couchbase.lite.internal;
+
+import android.support.annotation.GuardedBy;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+
+import java.util.concurrent.TimeUnit;
+
+import com.couchbase.lite.LogDomain;
+import com.couchbase.lite.internal.support.Log;
+import com.couchbase.lite.internal.utils.Preconditions;
+
+
+/**
+ * A hashed timer wheel: scheduling and cancelling a task are both constant time operations.
+ * Timing is coarse: a task may run as much as one tick after its deadline.
+ * <p>
+ * The wheel's thread sleeps until the earliest deadline: it does not wake on every tick.
+ * Finding that deadline takes time proportional to the distance to the first bucket that holds one.
+ * It is proportional to the number of pending tasks only when all of them are more than a revolution away.
+ * <p>
+ * Expired tasks are run on the wheel's single thread and must be very short.
+ * Typically, they do nothing more than hand a task off to some other executor.
+ */
+final class TimerWheel {
+    private static final long DEFAULT_TICK_MS = 10;
+    private static final int DEFAULT_WHEEL_SIZE = 512; // must be a power of 2
+
+    private static final String THREAD_NAME = "CBL-timer";
+
+    final class Timeout implements ExecutionService.Cancellable {
+        @NonNull
+        private final Runnable task;
+        private final long deadline;
+
+        @GuardedBy("lock")
+        private Timeout prev;
+        @GuardedBy("lock")
+        private Timeout next;
+        @GuardedBy("lock")
+        private boolean scheduled = true;
+
+        Timeout(@NonNull Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (lock) { unlink(this); }
+        }
+
+        @NonNull
+        @Override
+        public String toString() { return "Timeout{" + deadline + ", " + task + "}"; }
+    }
+
+    // Marks the wheel's threads, so that code run by an expired task can tell that it must not block.
+    private static final class TimerThread extends Thread {
+        TimerThread(@NonNull Runnable task) { super(task, THREAD_NAME); }
+    }
+
+    static boolean isTimerThread() { return Thread.currentThread() instanceof TimerThread; }
+
+    private final Object lock = new Object();
+
+    private final long tickNanos;
+    private final int mask;
+    private final long startNanos;
+
+    @GuardedBy("lock")
+    private final Timeout[] wheel;
+    // The next tick to be processed.  No pending timeout has an earlier deadline.
+    @GuardedBy("lock")
+    private long tick;
+    // The tick for which the worker is sleeping: an earlier timeout must wake it.
+    @GuardedBy("lock")
+    private long wakeTick = Long.MIN_VALUE;
+    @GuardedBy("lock")
+    private int pending;
+    @GuardedBy("lock")
+    private long wakeups;
+    @GuardedBy("lock")
+    private Thread worker;
+
+    TimerWheel() { this(DEFAULT_TICK_MS, DEFAULT_WHEEL_SIZE); }
+
+    TimerWheel(long tickMs, int wheelSize) {
+        if (tickMs <= 0) { throw new IllegalArgumentException("Tick must be positive: " + tickMs); }
+        if (Integer.bitCount(wheelSize) != 1) {
+            throw new IllegalArgumentException("Wheel size must be a power of 2: " + wheelSize);
+        }
+
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMs);
+        this.mask = wheelSize - 1;
+        this.wheel = new Timeout[wheelSize];
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * Schedule a task to run after the passed delay.
+     *
+     * @param delayMs delay before running the task.
+     * @param task    the task. It will be run on the wheel's thread.
+     * @return a handle that can be used to cancel the task.
+     */
+    @NonNull
+    Timeout schedule(long delayMs, @NonNull Runnable task) {
+        Preconditions.assertNotNull(task, "task");
+
+        final long nowNanos = System.nanoTime() - startNanos;
+        final long deadlineTick = (nowNanos + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMs))) / tickNanos;
+
+        synchronized (lock) {
+            // if the wheel has been idle, skip the ticks it missed
+            if (pending <= 0) { tick = Math.max(tick, nowNanos / tickNanos); }
+
+            final Timeout timeout = new Timeout(task, Math.max(deadlineTick, tick));
+
+            final int bucket = (int) (timeout.deadline & mask);
+            final Timeout head = wheel[bucket];
+            timeout.next = head;
+            if (head != null) { head.prev = timeout; }
+            wheel[bucket] = timeout;
+            pending++;
+
+            if (worker == null) { startWorker(); }
+            else if (timeout.deadline < wakeTick) { lock.notifyAll(); }
+
+            return timeout;
+        }
+    }
+
+    /**
+     * @return the number of times the wheel's thread has woken from a timed wait.
+     */
+    @VisibleForTesting
+    long getWakeups() {
+        synchronized (lock) { return wakeups; }
+    }
+
+    @GuardedBy("lock")
+    private void startWorker() {
+        worker = new TimerThread(this::run);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    @GuardedBy("lock")
+    private void unlink(@NonNull Timeout timeout) {
+        if (!timeout.scheduled) { return; }
+        timeout.scheduled = false;
+
+        if (timeout.prev != null) { timeout.prev.next = timeout.next; }
+        else { wheel[(int) (timeout.deadline & mask)] = timeout.next; }
+
+        if (timeout.next != null) { timeout.next.prev = timeout.prev; }
+
+        timeout.prev = null;
+        timeout.next = null;
+
+        pending--;
+    }
+
+    @SuppressWarnings("InfiniteLoopStatement")
+    private void run() {
+        while (true) {
+            Timeout expired = null;
+            try { expired = nextExpired(); }
+            catch (InterruptedException ignore) { }
+
+            // run the expired tasks outside the lock
+            while (expired != null) {
+                final Timeout timeout = expired;
+                expired = timeout.next;
+                try { timeout.task.run(); }
+                catch (RuntimeException e) { Log.w(LogDomain.DATABASE, "Timer task failed: %s", e, timeout); }
+            }
+        }
+    }
+
+    // Sleep until the earliest deadline and return a list of the tasks that have expired.
+    // Returns null if it was woken early: the caller should just call again.
+    @Nullable
+    private Timeout nextExpired() throws InterruptedException {
+        synchronized (lock) {
+            while (pending <= 0) {
+                wakeTick = Long.MAX_VALUE;
+                lock.wait();
+            }
+
+            final long nextTick = nextDeadline();
+            final long waitNanos = startNanos + ((nextTick + 1) * tickNanos) - System.nanoTime();
+            if (waitNanos > 0) {
+                wakeTick = nextTick;
+                try { TimeUnit.NANOSECONDS.timedWait(lock, waitNanos); }
+                finally {
+                    wakeTick = Long.MIN_VALUE;
+                    wakeups++;
+                }
+                return null;
+            }
+
+            // Expire everything due in the ticks that have passed.
+            // The wheel holds only one revolution's worth of buckets.
+            final long lastTick = ((System.nanoTime() - startNanos) / tickNanos) - 1;
+            final long n = Math.min((lastTick - tick) + 1, wheel.length);
+            Timeout expired = null;
+            for (long t = tick; t < tick + n; t++) {
+                Timeout timeout = wheel[(int) (t & mask)];
+                while (timeout != null) {
+                    final Timeout next = timeout.next;
+                    if (timeout.deadline <= lastTick) {
+                        unlink(timeout);
+                        timeout.next = expired;
+                        expired = timeout;
+                    }
+                    timeout = next;
+                }
+            }
+            tick = lastTick + 1;
+
+            return expired;
+        }
+    }
+
+    // The earliest deadline of any pending timeout.
+    // A timeout in the bucket for tick t has a deadline of t, or of t plus some number of revolutions.
+    @GuardedBy("lock")
+    private long nextDeadline() {
+        long earliest = Long.MAX_VALUE;
+        for (int i = 0; i < wheel.length; i++) {
+            final long t = tick + i;
+            for (Timeout timeout = wheel[(int) (t & mask)]; timeout != null; timeout = timeout.next) {
+                if (timeout.deadline == t) { return t; }
+                earliest = Math.min(earliest, timeout.deadline);
+            }
+        }
+        return earliest;
+    }
+}
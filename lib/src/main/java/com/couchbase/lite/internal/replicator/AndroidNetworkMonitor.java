@@ -0,0 +1,187 @@
+//
+// Copyright (c) 2020 Couchbase, Inc All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.couchbase.lite.internal.replicator;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.net.NetworkRequest;
+import android.os.Build;
+import android.support.annotation.GuardedBy;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.RequiresApi;
+
+import com.couchbase.lite.LogDomain;
+import com.couchbase.lite.internal.CouchbaseLiteInternal;
+import com.couchbase.lite.internal.support.Log;
+
+
+/**
+ * The Android source of network events, for the NetworkReachabilityHub:
+ * a NetworkCallback on API 21 and later, the CONNECTIVITY_ACTION broadcast before that.
+ * On API 24 and later the callback tracks the default network.  Before that it tracks all networks
+ * with internet capability, and the hub works out whether the default network has changed.
+ */
+final class AndroidNetworkMonitor implements NetworkReachabilityHub.NetworkMonitor {
+    private static final LogDomain DOMAIN = LogDomain.REPLICATOR;
+
+    private static class NetworkReceiver extends BroadcastReceiver {
+        @NonNull
+        private final Runnable onEvent;
+
+        NetworkReceiver(@NonNull Runnable onEvent) { this.onEvent = onEvent; }
+
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (!ConnectivityManager.CONNECTIVITY_ACTION.equals(intent.getAction())) { return; }
+            Log.v(DOMAIN, "NetworkReceiver.onReceive()");
+            onEvent.run();
+        }
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    private static class NetworkListener extends ConnectivityManager.NetworkCallback {
+        @NonNull
+        private final Runnable onEvent;
+
+        NetworkListener(@NonNull Runnable onEvent) { this.onEvent = onEvent; }
+
+        @Override
+        public void onAvailable(@NonNull Network network) {
+            Log.v(DOMAIN, "NetworkListener.onAvailable(): %s", network);
+            onEvent.run();
+        }
+
+        @Override
+        public void onLost(@NonNull Network network) {
+            Log.v(DOMAIN, "NetworkListener.onLost(): %s", network);
+            onEvent.run();
+        }
+
+        // A network may, for instance, become usable when its validation completes
+        // without either onAvailable or onLost being called.
+        @Override
+        public void onCapabilitiesChanged(@NonNull Network network, @NonNull NetworkCapabilities capabilities) {
+            Log.v(DOMAIN, "NetworkListener.onCapabilitiesChanged(): %s", network);
+            onEvent.run();
+        }
+    }
+
+    @GuardedBy("this")
+    private Context context;
+    @GuardedBy("this")
+    private Object listener;
+
+    @Override
+    public synchronized void start(@NonNull Runnable onEvent) {
+        context = CouchbaseLiteInternal.getContext();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) { registerCallback(onEvent); }
+        else { registerReceiver(onEvent); }
+    }
+
+    @Override
+    public synchronized void stop() {
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) { unregisterCallback(); }
+            else { context.unregisterReceiver((BroadcastReceiver) listener); }
+        }
+        catch (Exception e) {
+            Log.e(DOMAIN, "%s: stop() exception unregistering %s", e, this, listener);
+        }
+
+        listener = null;
+    }
+
+    @Override
+    public boolean isOnline() {
+        final ConnectivityManager service = getConnectivityManager();
+        if (service == null) { return false; }
+        final NetworkInfo networkInfo = service.getActiveNetworkInfo();
+        return (networkInfo != null) && networkInfo.isConnected();
+    }
+
+    // Identify the default network, as well as is possible on this API level.
+    @Nullable
+    @Override
+    public String getNetworkId() {
+        final ConnectivityManager service = getConnectivityManager();
+        if (service == null) { return null; }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            final Network network = service.getActiveNetwork();
+            return (network == null) ? null : network.toString();
+        }
+
+        final NetworkInfo networkInfo = service.getActiveNetworkInfo();
+        return (networkInfo == null) ? null : networkInfo.getType() + "/" + networkInfo.getExtraInfo();
+    }
+
+    @GuardedBy("this")
+    private void registerReceiver(@NonNull Runnable onEvent) {
+        final BroadcastReceiver receiver = new NetworkReceiver(onEvent);
+        listener = receiver;
+
+        final IntentFilter filter = new IntentFilter();
+        filter.addAction(ConnectivityManager.CONNECTIVITY_ACTION);
+        Log.v(DOMAIN, "%s: start() registering %s with context %s", this, receiver, context);
+        context.registerReceiver(receiver, filter);
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    @GuardedBy("this")
+    private void registerCallback(@NonNull Runnable onEvent) {
+        final ConnectivityManager.NetworkCallback callback = new NetworkListener(onEvent);
+        listener = callback;
+
+        final ConnectivityManager service = getConnectivityManager();
+        if (service == null) { return; }
+
+        Log.v(DOMAIN, "%s: start() registering %s", this, callback);
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            service.registerDefaultNetworkCallback(callback);
+            return;
+        }
+
+        final NetworkRequest request = new NetworkRequest.Builder()
+            .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+            .build();
+        service.registerNetworkCallback(request, callback);
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    @GuardedBy("this")
+    private void unregisterCallback() {
+        final ConnectivityManager service = getConnectivityManager();
+        if (service == null) { return; }
+
+        Log.v(DOMAIN, "%s: stop() unregistering %s", this, listener);
+        service.unregisterNetworkCallback((ConnectivityManager.NetworkCallback) listener);
+    }
+
+    @Nullable
+    private ConnectivityManager getConnectivityManager() {
+        final Context ctxt;
+        synchronized (this) { ctxt = context; }
+        return (ctxt == null) ? null : (ConnectivityManager) ctxt.getSystemService(Context.CONNECTIVITY_SERVICE);
+    }
+}
@@ -0,0 +1,128 @@
+//
+// Copyright (c) 2020 Couchbase, Inc All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.couchbase.lite.internal.replicator;
+
+import android.support.annotation.GuardedBy;
+import android.support.annotation.NonNull;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.couchbase.lite.internal.utils.Preconditions;
+
+
+/**
+ * Outbound bandwidth limits for replicator connections, by network class.
+ * By default, there are no limits.
+ * <p>
+ * Limits are applied with a token bucket per connection: a connection may burst
+ * up to a second's worth of data, after which its sends are held back until the budget refills.
+ * Holding back a send does not block the thread that sent it.
+ */
+public final class BandwidthPolicy {
+    private BandwidthPolicy() {}
+
+    @GuardedBy("LIMITS")
+    private static final Map<NetworkClass, Long> LIMITS = new EnumMap<>(NetworkClass.class);
+
+    // True if any class of network has a limit: when none does, sends need not check the network class.
+    private static volatile boolean limited;
+
+    /**
+     * Set the outbound bandwidth limit for a class of network.
+     *
+     * @param networkClass the class of network
+     * @param bytesPerSec  the limit, in bytes per second.  0 means unlimited.
+     */
+    public static void setLimit(@NonNull NetworkClass networkClass, long bytesPerSec) {
+        Preconditions.assertNotNull(networkClass, "network class");
+        if (bytesPerSec < 0) { throw new IllegalArgumentException("Limit must not be negative: " + bytesPerSec); }
+        synchronized (LIMITS) {
+            LIMITS.put(networkClass, bytesPerSec);
+
+            boolean anyLimit = false;
+            for (long limit: LIMITS.values()) { anyLimit |= limit > 0; }
+            limited = anyLimit;
+        }
+    }
+
+    /**
+     * @return true if any class of network has a limit.
+     */
+    public static boolean hasLimits() { return limited; }
+
+    /**
+     * @param networkClass the class of network
+     * @return the outbound bandwidth limit for the class, in bytes per second.  0 means unlimited.
+     */
+    public static long getLimit(@NonNull NetworkClass networkClass) {
+        synchronized (LIMITS) {
+            final Long limit = LIMITS.get(networkClass);
+            return (limit == null) ? 0 : limit;
+        }
+    }
+
+    /**
+     * A token bucket.  Not thread safe: a connection's sends are serialized.
+     * The bucket holds a second's worth of tokens and starts full.
+     */
+    static final class TokenBucket {
+        private static final long ONE_SEC_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+        // the limit for which the bucket was last filled
+        private long rate;
+        private long tokens;
+        private long refilledAt;
+
+        // Take tokens for the passed number of bytes.  Return the time to wait, in ms, to stay within the limit.
+        long take(int bytes, long bytesPerSec) { return take(bytes, bytesPerSec, System.nanoTime()); }
+
+        long take(int bytes, long bytesPerSec, long now) {
+            // a new bucket, or a new limit, starts full
+            if (bytesPerSec != rate) {
+                rate = bytesPerSec;
+                tokens = bytesPerSec;
+                refilledAt = now;
+            }
+            else {
+                refill(bytesPerSec, now);
+            }
+
+            tokens -= bytes;
+
+            return (tokens >= 0) ? 0 : ((-tokens * 1000L) + bytesPerSec - 1) / bytesPerSec;
+        }
+
+        // Add a token for each byte's worth of time that has passed.
+        // Time that does not add up to a whole token counts towards the next refill.
+        private void refill(long bytesPerSec, long now) {
+            final long elapsed = now - refilledAt;
+            final long refill = ((elapsed / ONE_SEC_NANOS) * bytesPerSec)
+                + (((elapsed % ONE_SEC_NANOS) * bytesPerSec) / ONE_SEC_NANOS);
+            if (refill <= 0) { return; }
+
+            if (tokens + refill >= bytesPerSec) {
+                tokens = bytesPerSec;
+                refilledAt = now;
+                return;
+            }
+
+            tokens += refill;
+            refilledAt += (refill * ONE_SEC_NANOS) / bytesPerSec;
+        }
+    }
+}
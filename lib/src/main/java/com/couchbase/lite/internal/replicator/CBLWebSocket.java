@@ -15,27 +15,93 @@
 //
 package com.couchbase.lite.internal.replicator;
 
+import android.annotation.SuppressLint;
 import android.os.Build;
+import android.support.annotation.GuardedBy;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.annotation.RequiresApi;
+import android.support.annotation.VisibleForTesting;
 import android.system.ErrnoException;
 
 import java.io.EOFException;
 import java.net.ConnectException;
+import java.net.NoRouteToHostException;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.URISyntaxException;
 import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
+import com.couchbase.lite.LogDomain;
+
+import com.couchbase.lite.internal.CouchbaseLiteInternal;
+import com.couchbase.lite.internal.ExecutionService;
 import com.couchbase.lite.internal.core.C4Constants;
+import com.couchbase.lite.internal.support.Log;
 
 
 public class CBLWebSocket extends AbstractCBLWebSocket {
     // Posix errno values with Android.
     // from sysroot/usr/include/asm-generic/errno.h
+    // LiteCore's retry logic depends on them: it retries transient errors (ECONNRESET, ETIMEDOUT)
+    // with backoff, but waits for the network to become reachable after network errors (EHOSTUNREACH).
     private static final int ECONNRESET = 104;    // java.net.SocketException
+    private static final int ETIMEDOUT = 110;     // java.net.SocketTimeoutException
     private static final int ECONNREFUSED = 111;  // java.net.ConnectException
+    private static final int EHOSTUNREACH = 113;  // java.net.NoRouteToHostException
+
+    // ErrnoExceptions are usually wrapped a couple of levels deep
+    private static final int MAX_CAUSE_DEPTH = 4;
+
+    // How often to re-check the class of the network, for bandwidth limits
+    private static final long NETWORK_CHECK_INTERVAL_NS = TimeUnit.SECONDS.toNanos(1);
+
+    // A scheduled send of deferred messages that is this late has been dropped by the execution service
+    private static final long LOST_SEND_NS = TimeUnit.SECONDS.toNanos(5);
+
+    // A send held back to stay within the bandwidth limit.
+    private static final class DeferredSend {
+        final byte[] data;
+        final int len;
+        final long dueAt;
+
+        DeferredSend(byte[] data, int len, long dueAt) {
+            this.data = data;
+            this.len = len;
+            this.dueAt = dueAt;
+        }
+    }
+
+    @NonNull
+    private final TransportStats stats;
 
+    private final BandwidthPolicy.TokenBucket bandwidth = new BandwidthPolicy.TokenBucket();
+    private NetworkClass networkClass;
+    private long networkCheckedAt;
+
+    @GuardedBy("deferred")
+    private final Deque<DeferredSend> deferred = new ArrayDeque<>();
+    // True while deferred sends are scheduled or being sent.  New sends must queue behind them.
+    @GuardedBy("deferred")
+    private boolean pacing;
+    // The scheduled task that will send the deferred sends: null while they are being sent.
+    @GuardedBy("deferred")
+    private ExecutionService.Cancellable pendingSends;
+    @GuardedBy("deferred")
+    private long pendingSendsDueAt;
+    // A close request that must wait until the deferred sends have been sent.
+    @GuardedBy("deferred")
+    private Runnable deferredClose;
+    // Once the socket is closed, nothing more may be handed to the transport.
+    @GuardedBy("deferred")
+    private boolean stopped;
 
     public CBLWebSocket(
         long handle,
@@ -46,45 +112,242 @@ public class CBLWebSocket extends AbstractCBLWebSocket {
         Map<String, Object> options)
         throws GeneralSecurityException, URISyntaxException {
         super(handle, scheme, hostname, port, path, options);
+        stats = TransportStats.forConnection(scheme + "://" + hostname + ":" + port + path);
     }
 
-    @SuppressWarnings("PMD.CollapsibleIfStatements")
-    protected boolean handleClose(@NonNull Throwable error) {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-            if (checkErrnoException(error)) { return true; }
+    @NonNull
+    public TransportStats getStats() { return stats; }
+
+    // A send that would exceed the bandwidth limit is not blocked: it is queued, and sent later
+    // from the execution service.  LiteCore does not get its write acknowledgement until then,
+    // which slows it down.  Sends are never reordered.
+    @Override
+    protected void send(byte[] allocatedData) {
+        final int len = (allocatedData == null) ? 0 : allocatedData.length;
+        final long waitMs = throttle(len);
+
+        final long dueAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMs);
+        final boolean deferSend;
+        synchronized (deferred) {
+            if (stopped) { return; }
+
+            deferSend = (waitMs > 0) || pacing;
+            if (deferSend) {
+                deferred.addLast(new DeferredSend(allocatedData, len, dueAt));
+                final boolean scheduled = (pacing && !isSendLost()) || scheduleDeferredSends(waitMs);
+                pacing = true;
+                if (scheduled) { return; }
+            }
         }
 
-        // ConnectException
-        if (error instanceof ConnectException) {
-            closed(C4Constants.ErrorDomain.POSIX, ECONNREFUSED, null);
-            return true;
+        // If the deferred sends could not be scheduled, send them now, ignoring the bandwidth limit.
+        if (deferSend) { sendDeferredSends(true); }
+        else { transmit(allocatedData, len); }
+    }
+
+    @Override
+    protected void requestClose(int status, String message) {
+        final boolean flush;
+        synchronized (deferred) {
+            if (stopped) { return; }
+
+            // The close request must follow the messages sent before it: it is made after the deferred sends.
+            flush = pacing;
+            if (flush) {
+                deferredClose = () -> super.requestClose(status, message);
+                if ((!isSendLost()) || scheduleDeferredSends(0)) { return; }
+            }
         }
 
-        // SocketException
-        else if (error instanceof SocketException) {
-            closed(C4Constants.ErrorDomain.POSIX, ECONNRESET, null);
-            return true;
+        // If the deferred sends could not be scheduled, send them now: that also makes the close request.
+        if (flush) { sendDeferredSends(true); }
+        else { super.requestClose(status, message); }
+    }
+
+    @Override
+    protected void close() {
+        stop();
+        super.close();
+    }
+
+    @Override
+    protected void opened() {
+        stats.opened();
+        super.opened();
+    }
+
+    @Override
+    protected void received(byte[] data) {
+        stats.received((data == null) ? 0 : data.length);
+        super.received(data);
+    }
+
+    @Override
+    protected void closed(int errorDomain, int errorCode, String message) {
+        stop();
+        stats.closed();
+        super.closed(errorDomain, errorCode, message);
+    }
+
+    @Override
+    protected void completedReceive(long byteCount) {
+        stats.receiveAcknowledged(byteCount);
+        super.completedReceive(byteCount);
+    }
+
+    // Return the time for which a send must be held back, to keep within the bandwidth limit for the current network.
+    // Sends are serialized, so there is no need to synchronize the token bucket or the network class.
+    private long throttle(int len) {
+        if (!BandwidthPolicy.hasLimits()) { return 0; }
+
+        final long now = System.nanoTime();
+        if ((networkClass == null) || (now - networkCheckedAt > NETWORK_CHECK_INTERVAL_NS)) {
+            networkClass = NetworkClass.getCurrent(CouchbaseLiteInternal.getContext());
+            networkCheckedAt = now;
         }
 
-        // EOFException
-        if (error instanceof EOFException) {
-            closed(C4Constants.ErrorDomain.POSIX, ECONNRESET, null);
-            return true;
+        final long limit = BandwidthPolicy.getLimit(networkClass);
+        return (limit <= 0) ? 0 : bandwidth.take(len, limit);
+    }
+
+    // Send, in order, the deferred sends that are due or, if flushing, all of them.
+    // Messages are handed to the transport outside the lock:
+    // the write acknowledgement calls into LiteCore, which may be trying to send another message.
+    private void sendDeferredSends(boolean flush) {
+        final List<DeferredSend> due = new ArrayList<>();
+        while (true) {
+            final Runnable close;
+            synchronized (deferred) {
+                pendingSends = null;
+                if (stopped) { return; }
+
+                final long now = System.nanoTime();
+                while ((!deferred.isEmpty()) && (flush || (deferred.peekFirst().dueAt <= now))) {
+                    due.add(deferred.pollFirst());
+                }
+
+                close = deferredClose;
+                if (due.isEmpty()) {
+                    final DeferredSend next = deferred.peekFirst();
+                    if (next == null) {
+                        pacing = false;
+                        deferredClose = null;
+                    }
+                    // round up: the task must not run before the send is due
+                    else if (scheduleDeferredSends(TimeUnit.NANOSECONDS.toMillis(next.dueAt - now) + 1)) { return; }
+                    else {
+                        flush = true;
+                        continue;
+                    }
+                }
+            }
+
+            if (due.isEmpty()) {
+                if (close != null) { close.run(); }
+                return;
+            }
+
+            for (DeferredSend send: due) {
+                synchronized (deferred) { if (stopped) { return; } }
+                transmit(send.data, send.len);
+            }
+            due.clear();
         }
+    }
+
+    // Schedule a task to send the deferred sends.  Returns false if the task could not be scheduled.
+    @GuardedBy("deferred")
+    private boolean scheduleDeferredSends(long delayMs) {
+        if (pendingSends != null) { pendingSends.cancel(); }
 
-        return false;
+        final ExecutionService executionService = CouchbaseLiteInternal.getExecutionService();
+        try {
+            pendingSends = executionService.postDelayedOnExecutor(
+                delayMs,
+                executionService.getConcurrentExecutor(),
+                () -> sendDeferredSends(false));
+        }
+        catch (RejectedExecutionException e) {
+            Log.w(LogDomain.NETWORK, "Failed scheduling deferred sends", e);
+            pendingSends = null;
+            return false;
+        }
+
+        pendingSendsDueAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMs);
+        return true;
     }
 
-    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
-    private boolean checkErrnoException(@NonNull Throwable error) {
-        Throwable cause = error.getCause();
-        if (cause == null) { return false; }
+    // The execution service may drop a delayed task.  If that happens, the deferred sends must be rescheduled.
+    // While they are being sent there is no pending task, and they cannot have been lost.
+    @GuardedBy("deferred")
+    private boolean isSendLost() {
+        return (pendingSends != null) && (System.nanoTime() - pendingSendsDueAt > LOST_SEND_NS);
+    }
+
+    // Discard anything that has not yet been sent
+    private void stop() {
+        synchronized (deferred) {
+            stopped = true;
+            if (pendingSends != null) {
+                pendingSends.cancel();
+                pendingSends = null;
+            }
+            deferred.clear();
+            deferredClose = null;
+            pacing = false;
+        }
+    }
 
-        cause = cause.getCause();
-        if (!(cause instanceof ErrnoException)) { return false; }
+    private void transmit(byte[] data, int len) {
+        super.send(data);
+        stats.sent(len);
+    }
 
-        closed(C4Constants.ErrorDomain.POSIX, ((ErrnoException) cause).errno, null);
+    protected boolean handleClose(@NonNull Throwable error) {
+        final Integer errno = getErrno(error, Build.VERSION.SDK_INT);
+        if (errno == null) { return false; }
 
+        closed(C4Constants.ErrorDomain.POSIX, errno, null);
         return true;
     }
+
+    // Map an error to the Posix errno that LiteCore expects.  Returns null for unrecognized errors.
+    @SuppressLint("NewApi")
+    @Nullable
+    @VisibleForTesting
+    static Integer getErrno(@NonNull Throwable error, int sdkVersion) {
+        if (sdkVersion >= Build.VERSION_CODES.LOLLIPOP) {
+            final Integer errno = findErrnoException(error);
+            if (errno != null) { return errno; }
+        }
+
+        // NoRouteToHostException: must precede SocketException
+        if (error instanceof NoRouteToHostException) { return EHOSTUNREACH; }
+
+        // ConnectException: must precede SocketException
+        if (error instanceof ConnectException) { return ECONNREFUSED; }
+
+        // SocketException
+        if (error instanceof SocketException) { return ECONNRESET; }
+
+        // EOFException
+        if (error instanceof EOFException) { return ECONNRESET; }
+
+        // SocketTimeoutException
+        if (error instanceof SocketTimeoutException) { return ETIMEDOUT; }
+
+        return null;
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    @Nullable
+    private static Integer findErrnoException(@NonNull Throwable error) {
+        Throwable cause = error.getCause();
+        for (int i = 0; (cause != null) && (i < MAX_CAUSE_DEPTH); i++) {
+            if (cause instanceof ErrnoException) { return ((ErrnoException) cause).errno; }
+            cause = cause.getCause();
+        }
+
+        return null;
+    }
 }
@@ -0,0 +1,73 @@
+//
+// Copyright (c) 2020 Couchbase, Inc All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.couchbase.lite.internal.replicator;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.os.Build;
+import android.support.annotation.NonNull;
+
+
+/**
+ * The class of the current default network.
+ */
+public enum NetworkClass {
+    OFFLINE, METERED, UNMETERED;
+
+    /**
+     * Classify the current default network.
+     *
+     * @param ctxt a context
+     * @return the class of the current default network.
+     */
+    @NonNull
+    public static NetworkClass getCurrent(@NonNull Context ctxt) {
+        final ConnectivityManager service = getService(ctxt);
+        if (service == null) { return OFFLINE; }
+
+        final NetworkInfo networkInfo = service.getActiveNetworkInfo();
+        if ((networkInfo == null) || !networkInfo.isConnected()) { return OFFLINE; }
+
+        return (service.isActiveNetworkMetered()) ? METERED : UNMETERED;
+    }
+
+    /**
+     * Get the system's estimate of the downstream bandwidth of the current default network.
+     * This is a rough estimate, often based only on the network technology.
+     *
+     * @param ctxt a context
+     * @return the estimated bandwidth in Kbps, or -1 if no estimate is available.
+     */
+    public static int getEstimatedBandwidthKbps(@NonNull Context ctxt) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) { return -1; }
+
+        final ConnectivityManager service = getService(ctxt);
+        if (service == null) { return -1; }
+
+        final Network network = service.getActiveNetwork();
+        if (network == null) { return -1; }
+
+        final NetworkCapabilities capabilities = service.getNetworkCapabilities(network);
+        return (capabilities == null) ? -1 : capabilities.getLinkDownstreamBandwidthKbps();
+    }
+
+    private static ConnectivityManager getService(@NonNull Context ctxt) {
+        return (ConnectivityManager) ctxt.getSystemService(Context.CONNECTIVITY_SERVICE);
+    }
+}
@@ -0,0 +1,265 @@
+//
+// Copyright (c) 2020 Couchbase, Inc All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.couchbase.lite.internal.replicator;
+
+import android.support.annotation.GuardedBy;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+
+import com.couchbase.lite.LogDomain;
+import com.couchbase.lite.internal.CouchbaseLiteInternal;
+import com.couchbase.lite.internal.ExecutionService;
+import com.couchbase.lite.internal.support.Log;
+import com.couchbase.lite.internal.utils.Preconditions;
+
+
+/**
+ * A single, process-wide source of network reachability events, shared by all replicators.
+ * <p>
+ * The hub registers for network events (see AndroidNetworkMonitor) only while it has subscribers.
+ * Events are debounced: subscribers are notified only when the network has been stable for the debounce window,
+ * and only if reachability or the identity of the default network has changed.
+ * <p>
+ * When the network becomes reachable, subscribers are notified in priority order, a few at a time,
+ * so that all of the replicators in the process do not try to reconnect at the same moment.
+ * The highest priority subscribers are notified first.  Loss of the network is reported to everyone at once.
+ * Replicators cannot set a priority: they all subscribe with the default priority, 0.
+ */
+public final class NetworkReachabilityHub {
+    private static final LogDomain DOMAIN = LogDomain.REPLICATOR;
+
+    private static final NetworkReachabilityHub INSTANCE = new NetworkReachabilityHub();
+
+    /**
+     * A subscriber to network reachability events.
+     */
+    public interface Subscriber {
+        void onNetworkChanged(boolean online);
+    }
+
+    /**
+     * The platform's source of network events and state.
+     */
+    interface NetworkMonitor {
+        // Start delivering events.  The hub reads the state of the network after each burst of events.
+        void start(@NonNull Runnable onEvent);
+
+        void stop();
+
+        boolean isOnline();
+
+        // An identifier for the default network: a change means the device has moved to a different network.
+        @Nullable
+        String getNetworkId();
+    }
+
+    private static volatile long debounceMs = 500;
+    private static volatile long staggerMs = 250;
+    private static volatile int reconnectConcurrency = 4;
+
+    @NonNull
+    public static NetworkReachabilityHub getInstance() { return INSTANCE; }
+
+    /**
+     * Set the time for which the network must be stable before subscribers are notified of a change.
+     *
+     * @param ms the debounce window, in ms
+     */
+    public static void setDebounceMs(long ms) { debounceMs = Math.max(0, ms); }
+
+    /**
+     * When the network becomes reachable, subscribers are notified in groups of this size.
+     *
+     * @param concurrency the number of subscribers to notify at once
+     */
+    public static void setReconnectConcurrency(int concurrency) { reconnectConcurrency = Math.max(1, concurrency); }
+
+    /**
+     * When the network becomes reachable, the delay between notifying successive groups of subscribers.
+     *
+     * @param ms delay between groups, in ms
+     */
+    public static void setReconnectStaggerMs(long ms) { staggerMs = Math.max(0, ms); }
+
+
+    // subscribers and their priorities, in order of subscription
+    @GuardedBy("this")
+    private final Map<Subscriber, Integer> subscribers = new LinkedHashMap<>();
+
+    @NonNull
+    private final NetworkMonitor monitor;
+
+    @GuardedBy("this")
+    private boolean listening;
+    @GuardedBy("this")
+    private ExecutionService.Cancellable pendingCheck;
+    // null until the first check after listening starts: that check always notifies subscribers
+    @GuardedBy("this")
+    private Boolean online;
+    @GuardedBy("this")
+    private String networkId;
+
+    private NetworkReachabilityHub() { this(new AndroidNetworkMonitor()); }
+
+    @VisibleForTesting
+    NetworkReachabilityHub(@NonNull NetworkMonitor monitor) { this.monitor = monitor; }
+
+    /**
+     * Subscribe to reachability events.  A new subscriber is notified of the current state
+     * as soon as it is known.
+     *
+     * @param subscriber the subscriber
+     * @param priority   subscribers with higher priorities are notified first
+     */
+    public void subscribe(@NonNull Subscriber subscriber, int priority) {
+        Preconditions.assertNotNull(subscriber, "subscriber");
+
+        final Boolean isOnline;
+        final String id;
+        synchronized (this) {
+            if (subscribers.containsKey(subscriber)) { return; }
+            subscribers.put(subscriber, priority);
+
+            if (!listening) {
+                startListening();
+                return;
+            }
+
+            isOnline = online;
+            id = networkId;
+        }
+
+        // If the current state is not yet known, the pending check will notify this subscriber
+        if (isOnline != null) { notifySubscriber(getExecutor(), subscriber, isOnline, id, 0); }
+    }
+
+    /**
+     * Unsubscribe from reachability events.  A notification already scheduled may still be delivered.
+     *
+     * @param subscriber the subscriber
+     */
+    public void unsubscribe(@NonNull Subscriber subscriber) {
+        Preconditions.assertNotNull(subscriber, "subscriber");
+
+        synchronized (this) {
+            if (subscribers.remove(subscriber) == null) { return; }
+            if (subscribers.isEmpty()) { stopListening(); }
+        }
+    }
+
+    @GuardedBy("this")
+    private void startListening() {
+        listening = true;
+        online = null;
+        networkId = null;
+
+        monitor.start(this::onNetworkEvent);
+
+        // make sure there's an initial check, even if registration doesn't trigger one
+        onNetworkEvent();
+    }
+
+    @GuardedBy("this")
+    private void stopListening() {
+        monitor.stop();
+        listening = false;
+
+        if (pendingCheck != null) {
+            pendingCheck.cancel();
+            pendingCheck = null;
+        }
+    }
+
+    // Restart the debounce window.
+    private synchronized void onNetworkEvent() {
+        if (!listening) { return; }
+
+        if (pendingCheck != null) { pendingCheck.cancel(); }
+
+        final ExecutionService executionService = CouchbaseLiteInternal.getExecutionService();
+        pendingCheck = executionService.postDelayedOnExecutor(
+            debounceMs,
+            executionService.getConcurrentExecutor(),
+            this::checkNetwork);
+    }
+
+    // The network has been quiet for the debounce window: notify subscribers if anything has changed.
+    private void checkNetwork() {
+        final List<Map.Entry<Subscriber, Integer>> targets;
+        final boolean isOnline;
+        final String id;
+        synchronized (this) {
+            pendingCheck = null;
+            if (!listening) { return; }
+
+            isOnline = monitor.isOnline();
+            id = (!isOnline) ? null : monitor.getNetworkId();
+            if (Objects.equals(isOnline, online) && Objects.equals(id, networkId)) { return; }
+
+            online = isOnline;
+            networkId = id;
+
+            targets = new ArrayList<>(subscribers.entrySet());
+        }
+
+        Log.v(DOMAIN, "Network changed: online %s, network %s, %d subscribers", isOnline, id, targets.size());
+
+        // stable sort: subscribers with equal priorities are notified in order of subscription
+        Collections.sort(targets, (e1, e2) -> Integer.compare(e2.getValue(), e1.getValue()));
+
+        final Executor executor = getExecutor();
+        final int concurrency = reconnectConcurrency;
+        final long stagger = staggerMs;
+        for (int i = 0; i < targets.size(); i++) {
+            final long delayMs = (!isOnline) ? 0 : (i / concurrency) * stagger;
+            notifySubscriber(executor, targets.get(i).getKey(), isOnline, id, delayMs);
+        }
+    }
+
+    private void notifySubscriber(
+        @NonNull Executor executor,
+        @NonNull Subscriber subscriber,
+        boolean isOnline,
+        @Nullable String id,
+        long delayMs) {
+        final Runnable task = () -> {
+            synchronized (this) {
+                // skip subscribers that have left, and notifications made stale by a later change
+                if (!subscribers.containsKey(subscriber)
+                    || !Objects.equals(isOnline, online)
+                    || !Objects.equals(id, networkId)) {
+                    return;
+                }
+            }
+            subscriber.onNetworkChanged(isOnline);
+        };
+
+        if (delayMs <= 0) { executor.execute(task); }
+        else { CouchbaseLiteInternal.getExecutionService().postDelayedOnExecutor(delayMs, executor, task); }
+    }
+
+    @NonNull
+    private Executor getExecutor() { return CouchbaseLiteInternal.getExecutionService().getConcurrentExecutor(); }
+}
@@ -0,0 +1,229 @@
+//
+// Copyright (c) 2020 Couchbase, Inc All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.couchbase.lite.internal.replicator;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Transport statistics for a replicator connection.
+ * Each socket has its own statistics: a push and a pull replicator connected to the same endpoint
+ * do not share counters, and a replicator that reconnects starts a new set.
+ * Statistics are kept for at most 64 connections: when there are more, those of the oldest closed connection
+ * (or, if none is closed, the oldest connection) are discarded.  Use removeStats to discard them explicitly.
+ * <p>
+ * Recording is a few atomic increments per message: cheap enough to leave on in production.
+ * Poll them when a ReplicatorChange arrives, or on any other schedule.
+ */
+public final class TransportStats {
+    private static final int SIZE_BUCKETS = 32;
+    private static final int MAX_CONNECTIONS = 64;
+
+    private static final AtomicLong NEXT_ID = new AtomicLong(0);
+
+    // connection id -> statistics.  Ids increase: a lower id is an older connection.
+    private static final ConcurrentMap<Long, TransportStats> STATS = new ConcurrentHashMap<>();
+
+    /**
+     * @param id a connection id
+     * @return the connection's statistics, or null if they have been discarded.
+     */
+    @Nullable
+    public static TransportStats getStats(long id) { return STATS.get(id); }
+
+    /**
+     * @param url the socket URL: "scheme://host:port/path"
+     * @return the statistics for each connection to the endpoint, oldest first.
+     */
+    @NonNull
+    public static List<TransportStats> getStatsForEndpoint(@NonNull String url) {
+        final List<TransportStats> stats = new ArrayList<>();
+        for (TransportStats connStats: getAllStats()) {
+            if (connStats.url.equals(url)) { stats.add(connStats); }
+        }
+        return stats;
+    }
+
+    /**
+     * @return the statistics for each connection, oldest first.
+     */
+    @NonNull
+    public static List<TransportStats> getAllStats() {
+        final List<TransportStats> stats = new ArrayList<>(STATS.values());
+        Collections.sort(stats, (s1, s2) -> Long.compare(s1.id, s2.id));
+        return stats;
+    }
+
+    /**
+     * Discard the statistics for a connection.  If the connection is still open it continues to update them,
+     * but they are no longer reachable from this class.
+     *
+     * @param id the connection id
+     * @return the connection's statistics, or null if there were none.
+     */
+    @Nullable
+    public static TransportStats removeStats(long id) { return STATS.remove(id); }
+
+    @NonNull
+    static TransportStats forConnection(@NonNull String url) {
+        final TransportStats stats = new TransportStats(NEXT_ID.incrementAndGet(), url);
+        STATS.put(stats.id, stats);
+        if (STATS.size() > MAX_CONNECTIONS) { evictOldest(stats); }
+        return stats;
+    }
+
+    // Discard the statistics for the oldest closed connection or, if none is closed,
+    // the oldest connection other than the passed one.
+    private static void evictOldest(@NonNull TransportStats keep) {
+        TransportStats oldest = null;
+        for (TransportStats stats: STATS.values()) {
+            if (stats == keep) { continue; }
+            if ((oldest == null)
+                || (stats.closed && !oldest.closed)
+                || ((stats.closed == oldest.closed) && (stats.id < oldest.id))) {
+                oldest = stats;
+            }
+        }
+        if (oldest != null) { STATS.remove(oldest.id, oldest); }
+    }
+
+
+    private final long id;
+    @NonNull
+    private final String url;
+
+    private volatile boolean opened;
+    private volatile boolean closed;
+
+    private final AtomicLong framesSent = new AtomicLong(0);
+    private final AtomicLong bytesSent = new AtomicLong(0);
+    private final AtomicLong framesReceived = new AtomicLong(0);
+    private final AtomicLong bytesReceived = new AtomicLong(0);
+    private final AtomicLong receiveAcks = new AtomicLong(0);
+    private final AtomicLong bytesConsumed = new AtomicLong(0);
+
+    // message sizes: bucket n counts messages of size [2^(n-1), 2^n)
+    private final AtomicLongArray sentSizes = new AtomicLongArray(SIZE_BUCKETS);
+    private final AtomicLongArray receivedSizes = new AtomicLongArray(SIZE_BUCKETS);
+
+    private TransportStats(long id, @NonNull String url) {
+        this.id = id;
+        this.url = url;
+    }
+
+    /**
+     * @return an id for the connection, unique within the process.
+     */
+    public long getId() { return id; }
+
+    @NonNull
+    public String getUrl() { return url; }
+
+    /**
+     * @return true if the connection has been opened: that is, the WebSocket handshake succeeded.
+     */
+    public boolean wasOpened() { return opened; }
+
+    public boolean isClosed() { return closed; }
+
+    public long getFramesSent() { return framesSent.get(); }
+
+    public long getBytesSent() { return bytesSent.get(); }
+
+    public long getFramesReceived() { return framesReceived.get(); }
+
+    public long getBytesReceived() { return bytesReceived.get(); }
+
+    /**
+     * The replicator acknowledges received data once it has consumed it.
+     * One acknowledgement may cover several messages: this is not a count of received frames.
+     *
+     * @return the number of times the replicator has acknowledged received data.
+     */
+    public long getReceiveAckCount() { return receiveAcks.get(); }
+
+    /**
+     * @return the number of received bytes that the replicator has consumed.
+     */
+    public long getBytesConsumed() { return bytesConsumed.get(); }
+
+    /**
+     * Sent message size histogram.  Element n is the count of messages whose size is
+     * at least 2^(n-1) and less than 2^n bytes.  Element 0 counts empty messages.
+     *
+     * @return a copy of the histogram.
+     */
+    @NonNull
+    public long[] getSentSizeHistogram() { return copy(sentSizes); }
+
+    /**
+     * Received message size histogram, bucketed as for getSentSizeHistogram.
+     *
+     * @return a copy of the histogram.
+     */
+    @NonNull
+    public long[] getReceivedSizeHistogram() { return copy(receivedSizes); }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "TransportStats{#" + id + " " + url + ((closed) ? " closed" : ((opened) ? " open" : " opening"))
+            + ": sent " + framesSent.get() + "/" + bytesSent.get()
+            + ", received " + framesReceived.get() + "/" + bytesReceived.get()
+            + ", consumed " + bytesConsumed.get() + " in " + receiveAcks.get() + " acks}";
+    }
+
+    void opened() { opened = true; }
+
+    void closed() { closed = true; }
+
+    void sent(int byteCount) {
+        framesSent.incrementAndGet();
+        bytesSent.addAndGet(byteCount);
+        sentSizes.incrementAndGet(getSizeBucket(byteCount));
+    }
+
+    void received(int byteCount) {
+        framesReceived.incrementAndGet();
+        bytesReceived.addAndGet(byteCount);
+        receivedSizes.incrementAndGet(getSizeBucket(byteCount));
+    }
+
+    void receiveAcknowledged(long byteCount) {
+        receiveAcks.incrementAndGet();
+        bytesConsumed.addAndGet(byteCount);
+    }
+
+    private static int getSizeBucket(int byteCount) {
+        return Math.min(32 - Integer.numberOfLeadingZeros(byteCount), SIZE_BUCKETS - 1);
+    }
+
+    @NonNull
+    private static long[] copy(@NonNull AtomicLongArray histogram) {
+        final long[] sizes = new long[SIZE_BUCKETS];
+        for (int i = 0; i < SIZE_BUCKETS; i++) { sizes[i] = histogram.get(i); }
+        return sizes;
+    }
+}
@@ -0,0 +1,165 @@
+//
+// Copyright (c) 2020 Couchbase, Inc All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.couchbase.lite;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class LogRingTest {
+    private final List<String> written = new ArrayList<>();
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSizeNotPowerOf2() { new LogRing(6, (level, domain, message) -> { }); }
+
+    @Test
+    public void testEmpty() { assertFalse(newRing(4).writeNext()); }
+
+    @Test
+    public void testFull() {
+        final LogRing ring = newRing(4);
+        for (int i = 0; i < 4; i++) { assertTrue(ring.offer(LogLevel.INFO, LogDomain.DATABASE, "m" + i)); }
+        assertFalse(ring.offer(LogLevel.INFO, LogDomain.DATABASE, "m4"));
+
+        // freeing one slot makes room for exactly one more
+        assertTrue(ring.writeNext());
+        assertTrue(ring.offer(LogLevel.INFO, LogDomain.DATABASE, "m5"));
+        assertFalse(ring.offer(LogLevel.INFO, LogDomain.DATABASE, "m6"));
+
+        drain(ring);
+        assertEquals(Arrays.asList("m0", "m1", "m2", "m3", "m5"), written);
+    }
+
+    // Many passes around a small ring, at every offset: records come out once each, in order.
+    @Test
+    public void testWrapAround() {
+        final LogRing ring = newRing(4);
+        final List<String> expected = new ArrayList<>();
+        int n = 0;
+        for (int pass = 0; pass < 50; pass++) {
+            final int batch = 1 + (pass % 4);
+            for (int i = 0; i < batch; i++) {
+                final String msg = "m" + n++;
+                assertTrue(ring.offer(LogLevel.INFO, LogDomain.DATABASE, msg));
+                expected.add(msg);
+            }
+            drain(ring);
+        }
+
+        assertEquals(expected, written);
+    }
+
+    @Test
+    public void testRecordFields() {
+        final List<String> records = new ArrayList<>();
+        final LogRing ring
+            = new LogRing(2, (level, domain, message) -> records.add(level + "/" + domain + "/" + message));
+        ring.offer(LogLevel.ERROR, LogDomain.REPLICATOR, "a");
+        ring.offer(LogLevel.DEBUG, LogDomain.DATABASE, "b");
+        ring.writeNext();
+        ring.writeNext();
+        ring.offer(LogLevel.WARNING, LogDomain.DATABASE, "c");
+        ring.writeNext();
+
+        assertEquals(Arrays.asList("ERROR/REPLICATOR/a", "DEBUG/DATABASE/b", "WARNING/DATABASE/c"), records);
+    }
+
+    // A writer that throws loses only the one record.
+    @Test
+    public void testWriterFailure() {
+        final LogRing ring = new LogRing(4, (level, domain, message) -> {
+            if ("bad".equals(message)) { throw new IllegalStateException("can't write"); }
+            written.add(message);
+        });
+        ring.offer(LogLevel.INFO, LogDomain.DATABASE, "a");
+        ring.offer(LogLevel.INFO, LogDomain.DATABASE, "bad");
+        ring.offer(LogLevel.INFO, LogDomain.DATABASE, "b");
+        drain(ring);
+
+        assertEquals(Arrays.asList("a", "b"), written);
+    }
+
+    // Several producers and a consumer, on a ring that wraps many times: every accepted record
+    // is written exactly once, and each producer's records are written in the order it offered them.
+    @Test
+    public void testConcurrentProducers() throws InterruptedException {
+        final int producers = 4;
+        final int perProducer = 20000;
+
+        final int[] lastSeen = new int[producers];
+        Arrays.fill(lastSeen, -1);
+        final AtomicInteger outOfOrder = new AtomicInteger();
+        final AtomicInteger consumed = new AtomicInteger();
+        final LogRing ring = new LogRing(64, (level, domain, message) -> {
+            final int sep = message.indexOf(':');
+            final int producer = Integer.parseInt(message.substring(0, sep));
+            final int seq = Integer.parseInt(message.substring(sep + 1));
+            if (seq <= lastSeen[producer]) { outOfOrder.incrementAndGet(); }
+            lastSeen[producer] = seq;
+            consumed.incrementAndGet();
+        });
+
+        final AtomicInteger accepted = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        final Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            threads[p] = new Thread(() -> {
+                try { start.await(); }
+                catch (InterruptedException ignore) { return; }
+                for (int i = 0; i < perProducer; i++) {
+                    final String msg = producer + ":" + i;
+                    if (ring.offer(LogLevel.INFO, LogDomain.DATABASE, msg)) { accepted.incrementAndGet(); }
+                }
+            });
+            threads[p].start();
+        }
+
+        final AtomicBoolean producing = new AtomicBoolean(true);
+        final Thread consumer = new Thread(() -> {
+            while (producing.get()) {
+                if (!ring.writeNext()) { Thread.yield(); }
+            }
+            while (ring.writeNext()) { }
+        });
+        consumer.start();
+
+        start.countDown();
+        for (Thread thread: threads) { thread.join(); }
+        producing.set(false);
+        consumer.join();
+
+        assertTrue(accepted.get() > 0);
+        assertEquals(accepted.get(), consumed.get());
+        assertEquals(0, outOfOrder.get());
+    }
+
+    private LogRing newRing(int size) { return new LogRing(size, (level, domain, message) -> written.add(message)); }
+
+    private void drain(LogRing ring) {
+        while (ring.writeNext()) { }
+    }
+}
@@ -0,0 +1,257 @@
+//
+// Copyright (c) 2020 Couchbase, Inc All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.couchbase.lite.internal;
+
+import android.support.annotation.NonNull;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class DelayedTaskOverflowTest {
+    // An executor that refuses tasks until it is opened.
+    private static final class Gate implements Executor {
+        private final AtomicBoolean open = new AtomicBoolean(false);
+        private final AtomicInteger refused = new AtomicInteger(0);
+
+        @Override
+        public void execute(@NonNull Runnable task) {
+            if (!open.get()) {
+                refused.incrementAndGet();
+                throw new RejectedExecutionException("closed");
+            }
+            task.run();
+        }
+    }
+
+    // A retry that counts its runs, unless it has been cancelled.
+    private static final class Retry implements Runnable, ExecutionService.Cancellable {
+        private final AtomicBoolean cancelled = new AtomicBoolean(false);
+        private final AtomicInteger runs = new AtomicInteger(0);
+        private final CountDownLatch ran = new CountDownLatch(1);
+
+        @Override
+        public void run() {
+            if (cancelled.get()) { return; }
+            runs.incrementAndGet();
+            ran.countDown();
+        }
+
+        @Override
+        public void cancel() { cancelled.set(true); }
+    }
+
+    private final DelayedTaskOverflow overflow = new DelayedTaskOverflow(new TimerWheel());
+
+    @Test
+    public void testRequeue() throws InterruptedException {
+        final Gate gate = new Gate();
+        final Retry retry = new Retry();
+
+        assertTrue(overflow.offer("key", gate, retry));
+        assertEquals(1, overflow.getDepth());
+
+        // let the overflow back off a couple of times
+        while (gate.refused.get() < 2) { Thread.sleep(5); }
+        gate.open.set(true);
+
+        assertTrue(retry.ran.await(5, TimeUnit.SECONDS));
+        waitForEmpty();
+        assertEquals(1, retry.runs.get());
+        assertEquals(1, overflow.getOverflowCount());
+        assertEquals(1, overflow.getRequeueCount());
+        assertEquals(0, overflow.getDropCount());
+    }
+
+    // Of two tasks with the same key, only the newer runs: the older one is cancelled.
+    @Test
+    public void testMerge() throws InterruptedException {
+        final Gate gate = new Gate();
+        final Retry older = new Retry();
+        final Retry newer = new Retry();
+        final Retry other = new Retry();
+
+        assertTrue(overflow.offer("key", gate, older));
+        assertTrue(overflow.offer("other", gate, other));
+        assertTrue(overflow.offer("key", gate, newer));
+        assertEquals(2, overflow.getDepth());
+        assertEquals(1, overflow.getMergeCount());
+        assertTrue(older.cancelled.get());
+
+        gate.open.set(true);
+        assertTrue(newer.ran.await(5, TimeUnit.SECONDS));
+        assertTrue(other.ran.await(5, TimeUnit.SECONDS));
+        waitForEmpty();
+
+        assertEquals(0, older.runs.get());
+        assertEquals(1, newer.runs.get());
+        assertEquals(1, other.runs.get());
+    }
+
+    // A removed task is never resubmitted.  Removing some other task with the same key does nothing.
+    @Test
+    public void testRemove() throws InterruptedException {
+        final Gate gate = new Gate();
+        final Retry removed = new Retry();
+        final Retry kept = new Retry();
+
+        assertTrue(overflow.offer("removed", gate, removed));
+        assertTrue(overflow.offer("kept", gate, kept));
+        overflow.remove("removed", removed);
+        overflow.remove("kept", removed);
+        assertEquals(1, overflow.getDepth());
+
+        gate.open.set(true);
+        assertTrue(kept.ran.await(5, TimeUnit.SECONDS));
+        waitForEmpty();
+        assertEquals(0, removed.runs.get());
+    }
+
+    @Test
+    public void testDropWhenFull() {
+        final Gate gate = new Gate();
+
+        int accepted = 0;
+        while (overflow.offer(accepted, gate, new Retry())) { accepted++; }
+
+        assertTrue(accepted > 0);
+        assertEquals(accepted, overflow.getDepth());
+        assertEquals(1, overflow.getDropCount());
+
+        // a task with the key of a waiting task is merged, even when the holding area is full
+        assertTrue(overflow.offer(0, gate, new Retry()));
+        assertEquals(1, overflow.getDropCount());
+    }
+
+    @Test
+    public void testClosedExecutor() throws InterruptedException {
+        final Retry retry = new Retry();
+        assertTrue(overflow.offer(
+            "key",
+            task -> { throw new ExecutionService.CloseableExecutor.ExecutorClosedException("closed"); },
+            retry));
+
+        waitForEmpty();
+        assertEquals(0, retry.runs.get());
+        assertEquals(1, overflow.getDropCount());
+        // a dropped task is cancelled, so that it can release its owner
+        assertTrue(retry.cancelled.get());
+    }
+
+    // Tasks are resubmitted outside the lock: other threads can use the overflow while an executor is busy.
+    @Test
+    public void testResubmitsOutsideLock() throws InterruptedException {
+        final Gate gate = new Gate();
+        final AtomicBoolean offeredWhileResubmitting = new AtomicBoolean(false);
+        final Retry retry = new Retry();
+
+        final Executor slow = task -> {
+            final Thread other = new Thread(() -> overflow.offer("other", gate, new Retry()));
+            other.start();
+            try { other.join(1000); }
+            catch (InterruptedException ignore) { }
+            offeredWhileResubmitting.set(!other.isAlive());
+            task.run();
+        };
+
+        assertTrue(overflow.offer("key", slow, retry));
+        assertTrue(retry.ran.await(5, TimeUnit.SECONDS));
+        assertTrue(offeredWhileResubmitting.get());
+
+        gate.open.set(true);
+        waitForEmpty();
+    }
+
+    // Many replicators retry, repeatedly, while the pool is saturated.
+    // Every replicator's latest retry must run exactly once, and no retry may run twice.
+    @Test
+    public void testNoLostRetriesWhenPoolIsSaturated() throws InterruptedException {
+        final int replicators = 64;
+        final int retriesPerReplicator = 3;
+
+        final ThreadPoolExecutor pool
+            = new ThreadPoolExecutor(2, 2, 30, TimeUnit.SECONDS, new ArrayBlockingQueue<>(8));
+        try {
+            // saturate the pool
+            final CountDownLatch blocker = new CountDownLatch(1);
+            for (int i = 0; i < 2; i++) {
+                pool.execute(() -> {
+                    try { blocker.await(); }
+                    catch (InterruptedException ignore) { }
+                });
+            }
+
+            final Map<String, Retry[]> retries = new ConcurrentHashMap<>();
+            for (int gen = 0; gen < retriesPerReplicator; gen++) {
+                for (int r = 0; r < replicators; r++) {
+                    final String key = "replicator-" + r;
+                    Retry[] gens = retries.get(key);
+                    if (gens == null) {
+                        gens = new Retry[retriesPerReplicator];
+                        retries.put(key, gens);
+                    }
+
+                    final Retry retry = new Retry();
+                    gens[gen] = retry;
+                    // this is what AndroidExecutionService does with a delayed task that the executor rejects
+                    try { pool.execute(retry); }
+                    catch (RejectedExecutionException e) { assertTrue(overflow.offer(key, pool, retry)); }
+                }
+            }
+
+            assertTrue(overflow.getMergeCount() > 0);
+            blocker.countDown();
+
+            for (Retry[] gens: retries.values()) {
+                assertTrue(gens[retriesPerReplicator - 1].ran.await(10, TimeUnit.SECONDS));
+            }
+            waitForEmpty();
+            pool.shutdown();
+            assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+
+            for (Map.Entry<String, Retry[]> entry: retries.entrySet()) {
+                final Retry[] gens = entry.getValue();
+                assertEquals(entry.getKey(), 1, gens[retriesPerReplicator - 1].runs.get());
+                for (Retry retry: gens) { assertTrue(entry.getKey(), retry.runs.get() <= 1); }
+            }
+            assertEquals(0, overflow.getDropCount());
+        }
+        finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private void waitForEmpty() throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (overflow.getDepth() > 0) {
+            assertTrue("overflow did not drain: " + overflow, System.nanoTime() < deadline);
+            Thread.sleep(5);
+        }
+    }
+}
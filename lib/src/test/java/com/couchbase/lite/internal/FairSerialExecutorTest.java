@@ -0,0 +1,207 @@
+//
+// Copyright (c) 2020 Couchbase, Inc All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.couchbase.lite.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class FairSerialExecutorTest {
+    private ThreadPoolExecutor pool;
+
+    @Before
+    public void setUp() {
+        pool = new ThreadPoolExecutor(4, 4, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+    }
+
+    @After
+    public void tearDown() { pool.shutdownNow(); }
+
+    // Tasks run in submission order, one at a time, even on a multi-threaded pool.
+    @Test
+    public void testOrdering() throws InterruptedException {
+        final FairSerialExecutor executor = new FairSerialExecutor(pool);
+        final int n = 2000;
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        final AtomicInteger running = new AtomicInteger(0);
+        final AtomicInteger maxRunning = new AtomicInteger(0);
+
+        for (int i = 0; i < n; i++) {
+            final int id = i;
+            executor.execute(() -> {
+                maxRunning.set(Math.max(maxRunning.get(), running.incrementAndGet()));
+                order.add(id);
+                running.decrementAndGet();
+            });
+        }
+
+        assertTrue(executor.stop(5, TimeUnit.SECONDS));
+        assertEquals(1, maxRunning.get());
+        assertEquals(n, order.size());
+        for (int i = 0; i < n; i++) { assertEquals(i, (int) order.get(i)); }
+    }
+
+    // A busy executor gives its thread back after each slice:
+    // on a single-threaded pool, a task on another executor runs long before the busy one is done.
+    @Test
+    public void testFairness() throws InterruptedException {
+        final ThreadPoolExecutor onePool
+            = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        try {
+            final FairSerialExecutor hot = new FairSerialExecutor(onePool);
+            final FairSerialExecutor cold = new FairSerialExecutor(onePool);
+
+            final int n = 200;
+            final AtomicInteger hotDone = new AtomicInteger(0);
+            final CountDownLatch gate = new CountDownLatch(1);
+            final CountDownLatch coldRan = new CountDownLatch(1);
+            final AtomicInteger hotDoneWhenColdRan = new AtomicInteger(-1);
+
+            // hold the hot executor's first slice until the cold executor is waiting for the pool
+            hot.execute(() -> {
+                try { gate.await(); }
+                catch (InterruptedException ignore) { }
+            });
+            for (int i = 0; i < n; i++) { hot.execute(hotDone::incrementAndGet); }
+            cold.execute(() -> {
+                hotDoneWhenColdRan.set(hotDone.get());
+                coldRan.countDown();
+            });
+            gate.countDown();
+
+            assertTrue(coldRan.await(5, TimeUnit.SECONDS));
+            assertTrue(hot.stop(5, TimeUnit.SECONDS));
+
+            // the cold task waits for no more than the hot executor's first slice
+            assertTrue(
+                "cold task waited for " + hotDoneWhenColdRan.get() + " hot tasks",
+                hotDoneWhenColdRan.get() < 32);
+            assertEquals(n, hotDone.get());
+        }
+        finally {
+            onePool.shutdownNow();
+        }
+    }
+
+    // A failing task does not stop the tasks behind it.
+    @Test
+    public void testFailingTask() throws InterruptedException {
+        final FairSerialExecutor executor = new FairSerialExecutor(pool);
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        executor.execute(() -> { throw new IllegalStateException("expected"); });
+        executor.execute(latch::countDown);
+
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+    }
+
+    // Tasks submitted before the stop run: tasks submitted after it are refused.
+    @Test
+    public void testStop() throws InterruptedException {
+        final FairSerialExecutor executor = new FairSerialExecutor(pool);
+        final AtomicInteger runs = new AtomicInteger(0);
+
+        for (int i = 0; i < 100; i++) { executor.execute(runs::incrementAndGet); }
+
+        assertTrue(executor.stop(5, TimeUnit.SECONDS));
+        assertEquals(100, runs.get());
+
+        try {
+            executor.execute(runs::incrementAndGet);
+            fail("Stopped executor accepted a task");
+        }
+        catch (ExecutionService.CloseableExecutor.ExecutorClosedException ignore) { }
+    }
+
+    // If the pool refuses to take the executor back after a slice, it keeps running its tasks in place.
+    @Test
+    public void testContinuesWhenPoolRejects() throws InterruptedException {
+        final ThreadPoolExecutor onePool
+            = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(1));
+        try {
+            final FairSerialExecutor executor = new FairSerialExecutor(onePool);
+            final CountDownLatch blocker = new CountDownLatch(1);
+            final AtomicInteger runs = new AtomicInteger(0);
+
+            executor.execute(() -> {
+                try { blocker.await(); }
+                catch (InterruptedException ignore) { }
+            });
+            for (int i = 0; i < 100; i++) { executor.execute(runs::incrementAndGet); }
+
+            // fill the pool's only queue slot, so that the executor cannot requeue itself
+            onePool.execute(() -> { });
+            blocker.countDown();
+
+            assertTrue(executor.stop(5, TimeUnit.SECONDS));
+            assertEquals(100, runs.get());
+            assertFalse(onePool.isShutdown());
+        }
+        finally {
+            onePool.shutdownNow();
+        }
+    }
+
+    // When instrumented, each task is timed individually, from the call to execute.
+    @Test
+    public void testInstrumentedTimesEachTask() throws InterruptedException {
+        final FairSerialExecutor executor = new FairSerialExecutor("test", pool);
+        executor.setInstrumented(true);
+
+        // the first task runs until all of the others have been submitted
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch gate = new CountDownLatch(1);
+        executor.execute(() -> {
+            started.countDown();
+            try { gate.await(); }
+            catch (InterruptedException ignore) { }
+        });
+        assertTrue(started.await(2, TimeUnit.SECONDS));
+        final long startedAt = System.nanoTime();
+
+        final int n = 100;
+        executor.execute(() -> { });
+        final long secondSubmittedAt = System.nanoTime();
+        for (int i = 2; i < n; i++) { executor.execute(() -> { }); }
+
+        final long releasedAt = System.nanoTime();
+        gate.countDown();
+        assertTrue(executor.stop(5, TimeUnit.SECONDS));
+
+        final ExecutionStats stats = executor.getStats();
+        assertEquals("test", stats.getName());
+        assertEquals(n, stats.getTaskCount());
+        assertEquals(0, stats.getQueueDepth());
+        // the first task ran for, and the second waited for, at least as long as the gate was closed
+        assertTrue(stats.getMaxRunMicros() >= TimeUnit.NANOSECONDS.toMicros(releasedAt - startedAt));
+        assertTrue(stats.getMaxWaitMicros() >= TimeUnit.NANOSECONDS.toMicros(releasedAt - secondSubmittedAt));
+    }
+}
@@ -0,0 +1,96 @@
+//
+// Copyright (c) 2020 Couchbase, Inc All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.couchbase.lite.internal;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class LatencyHistogramTest {
+    // Small values have a bucket each.
+    @Test
+    public void testSmallValues() {
+        for (int i = 0; i < 8; i++) {
+            assertEquals(i, LatencyHistogram.bucketFor(i));
+            assertEquals(i, LatencyHistogram.lowerBound(i));
+        }
+        assertEquals(0, LatencyHistogram.bucketFor(-5));
+    }
+
+    // Every value falls in the bucket whose bounds contain it, and buckets are within 12.5% of their values.
+    @Test
+    public void testBucketBounds() {
+        int prevBucket = 0;
+        for (long micros = 0; micros < 1000000; micros = (micros < 5000) ? micros + 1 : micros + 997) {
+            final int bucket = LatencyHistogram.bucketFor(micros);
+            assertTrue(bucket >= prevBucket);
+            prevBucket = bucket;
+
+            final long lower = LatencyHistogram.lowerBound(bucket);
+            final long upper = LatencyHistogram.lowerBound(bucket + 1);
+            assertTrue("value " + micros + " below bucket " + bucket, lower <= micros);
+            assertTrue("value " + micros + " above bucket " + bucket, micros < upper);
+            assertTrue("bucket " + bucket + " too wide", (upper - lower) * 8 <= Math.max(8, lower));
+        }
+    }
+
+    @Test
+    public void testPowersOfTwo() {
+        for (int exp = 3; exp <= 40; exp++) {
+            final long micros = 1L << exp;
+            assertEquals(micros, LatencyHistogram.lowerBound(LatencyHistogram.bucketFor(micros)));
+            assertEquals(LatencyHistogram.bucketFor(micros) - 1, LatencyHistogram.bucketFor(micros - 1));
+        }
+    }
+
+    // Values too large for the histogram all go in the last bucket.
+    @Test
+    public void testHugeValues() {
+        final int last = LatencyHistogram.bucketFor(Long.MAX_VALUE);
+        assertEquals(last, LatencyHistogram.bucketFor(1L << 50));
+        assertTrue(LatencyHistogram.bucketFor(1L << 40) <= last);
+    }
+
+    @Test
+    public void testPercentiles() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++) { histogram.recordNanos(TimeUnit.MILLISECONDS.toNanos(i)); }
+
+        final LatencyHistogram.Snapshot snap = histogram.snapshot();
+        assertEquals(100, snap.getCount());
+        assertEquals(100000, snap.getMaxMicros());
+
+        // percentiles are upper bounds, accurate to 12.5%
+        final long p50 = snap.getPercentileMicros(50);
+        assertTrue(p50 >= 50000);
+        assertTrue(p50 <= 50000 * 1.125);
+        final long p99 = snap.getPercentileMicros(99);
+        assertTrue(p99 >= 99000);
+        assertTrue(p99 <= 100000);
+        assertEquals(100000, snap.getPercentileMicros(100));
+    }
+
+    @Test
+    public void testEmpty() {
+        final LatencyHistogram.Snapshot snap = new LatencyHistogram().snapshot();
+        assertEquals(0, snap.getCount());
+        assertEquals(0, snap.getPercentileMicros(99));
+    }
+}
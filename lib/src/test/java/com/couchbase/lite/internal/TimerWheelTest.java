@@ -0,0 +1,163 @@
+//
+// Copyright (c) 2020 Couchbase, Inc All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.couchbase.lite.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class TimerWheelTest {
+    @Test
+    public void testRunsAfterDelay() throws InterruptedException {
+        final TimerWheel timer = new TimerWheel();
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        final long start = System.nanoTime();
+        timer.schedule(50, latch::countDown);
+
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 50);
+    }
+
+    @Test
+    public void testRunsInDeadlineOrder() throws InterruptedException {
+        final TimerWheel timer = new TimerWheel();
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch latch = new CountDownLatch(3);
+
+        timer.schedule(90, () -> { order.add(90); latch.countDown(); });
+        timer.schedule(30, () -> { order.add(30); latch.countDown(); });
+        timer.schedule(60, () -> { order.add(60); latch.countDown(); });
+
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        assertEquals(3, order.size());
+        assertEquals(30, (int) order.get(0));
+        assertEquals(60, (int) order.get(1));
+        assertEquals(90, (int) order.get(2));
+    }
+
+    @Test
+    public void testCancel() throws InterruptedException {
+        final TimerWheel timer = new TimerWheel();
+        final AtomicInteger runs = new AtomicInteger(0);
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        timer.schedule(30, runs::incrementAndGet).cancel();
+        final TimerWheel.Timeout timeout = timer.schedule(30, runs::incrementAndGet);
+        timer.schedule(60, latch::countDown);
+        timeout.cancel();
+        // cancelling twice is harmless
+        timeout.cancel();
+
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        assertEquals(0, runs.get());
+    }
+
+    // Deadlines more than one revolution of the wheel away must neither run early nor be lost.
+    @Test
+    public void testDeadlinesBeyondOneRevolution() throws InterruptedException {
+        final TimerWheel timer = new TimerWheel(10, 8);
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch latch = new CountDownLatch(3);
+
+        final long start = System.nanoTime();
+        timer.schedule(250, () -> { order.add(250); latch.countDown(); });
+        timer.schedule(170, () -> { order.add(170); latch.countDown(); });
+        timer.schedule(20, () -> { order.add(20); latch.countDown(); });
+
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 250);
+        assertEquals(20, (int) order.get(0));
+        assertEquals(170, (int) order.get(1));
+        assertEquals(250, (int) order.get(2));
+    }
+
+    // A pending timer far in the future must not cause the wheel's thread to wake on every tick.
+    @Test
+    public void testSleepsUntilDeadline() throws InterruptedException {
+        final TimerWheel timer = new TimerWheel();
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        timer.schedule(TimeUnit.MINUTES.toMillis(10), () -> { });
+        timer.schedule(20, latch::countDown);
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+
+        final long wakeups = timer.getWakeups();
+        final CountDownLatch later = new CountDownLatch(1);
+        timer.schedule(200, later::countDown);
+        assertTrue(later.await(2, TimeUnit.SECONDS));
+
+        // at 10ms per tick, polling would have woken about 20 times: the wheel should wake for the timer
+        // (and, perhaps, once for the call to schedule)
+        assertTrue(timer.getWakeups() - wakeups <= 2);
+    }
+
+    // A timer with an earlier deadline must wake a thread that is sleeping until a later one.
+    @Test
+    public void testEarlierDeadlineWakesTimer() throws InterruptedException {
+        final TimerWheel timer = new TimerWheel();
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        timer.schedule(TimeUnit.MINUTES.toMillis(10), () -> { });
+        // once this has run, the wheel's thread is asleep until the far deadline
+        final CountDownLatch first = new CountDownLatch(1);
+        timer.schedule(20, first::countDown);
+        assertTrue(first.await(2, TimeUnit.SECONDS));
+
+        final long start = System.nanoTime();
+        timer.schedule(20, latch::countDown);
+
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+    }
+
+    @Test
+    public void testManyTimers() throws InterruptedException {
+        final TimerWheel timer = new TimerWheel(10, 16);
+        final int n = 1000;
+        final AtomicInteger runs = new AtomicInteger(0);
+        final CountDownLatch latch = new CountDownLatch(n / 2);
+
+        final List<TimerWheel.Timeout> cancelled = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            final TimerWheel.Timeout timeout = timer.schedule(
+                i % 300,
+                () -> {
+                    runs.incrementAndGet();
+                    latch.countDown();
+                });
+            if ((i % 2) == 0) { cancelled.add(timeout); }
+        }
+        for (TimerWheel.Timeout timeout: cancelled) { timeout.cancel(); }
+
+        // timers run in deadline order: when this one runs, every timer that was going to run has
+        final CountDownLatch last = new CountDownLatch(1);
+        timer.schedule(400, last::countDown);
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(last.await(5, TimeUnit.SECONDS));
+        assertEquals(n / 2, runs.get());
+    }
+}
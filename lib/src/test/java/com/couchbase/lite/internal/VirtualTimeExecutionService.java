@@ -0,0 +1,175 @@
+//
+// Copyright (c) 2020 Couchbase, Inc All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.couchbase.lite.internal;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.couchbase.lite.internal.utils.Preconditions;
+
+
+/**
+ * A deterministic ExecutionService, for JVM unit tests.
+ * <p>
+ * Nothing runs until the test calls runUntilIdle() or advance().  All tasks, on every executor,
+ * run on the calling thread, in order.  Delayed tasks run when the virtual clock passes their deadline:
+ * advancing the clock is instantaneous.  Install it with CouchbaseLiteInternal.setExecutionService.
+ * <p>
+ * This class is not thread safe: it should be used only from the test thread.
+ */
+public final class VirtualTimeExecutionService extends AbstractExecutionService {
+    private static final class VirtualTimer implements Cancellable, Comparable<VirtualTimer> {
+        private final long dueMs;
+        private final long seq;
+        @NonNull
+        private final Executor executor;
+        @NonNull
+        private final Runnable task;
+        private boolean cancelled;
+
+        VirtualTimer(long dueMs, long seq, @NonNull Executor executor, @NonNull Runnable task) {
+            this.dueMs = dueMs;
+            this.seq = seq;
+            this.executor = executor;
+            this.task = task;
+        }
+
+        @Override
+        public void cancel() { cancelled = true; }
+
+        @Override
+        public int compareTo(@NonNull VirtualTimer other) {
+            final int cmp = Long.compare(dueMs, other.dueMs);
+            return (cmp != 0) ? cmp : Long.compare(seq, other.seq);
+        }
+    }
+
+    // A thread pool without threads: tasks are queued until the test runs them.
+    private static final class VirtualThreadPool extends ThreadPoolExecutor {
+        @NonNull
+        private final Deque<Runnable> ready;
+
+        VirtualThreadPool(@NonNull Deque<Runnable> ready) {
+            super(1, 1, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+            this.ready = ready;
+        }
+
+        @Override
+        public void execute(@NonNull Runnable task) { ready.addLast(task); }
+    }
+
+    @NonNull
+    private final Deque<Runnable> ready;
+    private final PriorityQueue<VirtualTimer> timers = new PriorityQueue<>();
+    private final Executor mainExecutor;
+
+    private long nowMs;
+    private long seq;
+
+    public VirtualTimeExecutionService() { this(new ArrayDeque<>()); }
+
+    private VirtualTimeExecutionService(@NonNull Deque<Runnable> ready) {
+        super(new VirtualThreadPool(ready));
+        this.ready = ready;
+        this.mainExecutor = ready::addLast;
+    }
+
+    @NonNull
+    @Override
+    public Executor getMainExecutor() { return mainExecutor; }
+
+    @NonNull
+    @Override
+    public Cancellable postDelayedOnExecutor(long delayMs, @NonNull Executor executor, @NonNull Runnable task) {
+        Preconditions.assertNotNull(executor, "executor");
+        Preconditions.assertNotNull(task, "task");
+
+        final VirtualTimer timer = new VirtualTimer(nowMs + Math.max(0, delayMs), seq++, executor, task);
+        timers.add(timer);
+        return timer;
+    }
+
+    @Override
+    public void cancelDelayedTask(@NonNull Cancellable cancellableTask) {
+        Preconditions.assertNotNull(cancellableTask, "cancellableTask");
+        cancellableTask.cancel();
+    }
+
+    /**
+     * @return the current virtual time, in ms.
+     */
+    public long now() { return nowMs; }
+
+    /**
+     * @return the number of tasks that are ready to run, plus the number of delayed tasks not yet run or cancelled.
+     */
+    public int getPendingCount() {
+        int n = ready.size();
+        for (VirtualTimer timer: timers) {
+            if (!timer.cancelled) { n++; }
+        }
+        return n;
+    }
+
+    /**
+     * Run tasks until there are none ready to run.  Does not advance the clock.
+     *
+     * @return the number of tasks run.
+     */
+    public int runUntilIdle() {
+        int n = 0;
+        Runnable task;
+        while ((task = ready.pollFirst()) != null) {
+            task.run();
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Advance the virtual clock, running every task that becomes due, in deadline order.
+     *
+     * @param ms the amount by which to advance the clock.
+     * @return the number of tasks run.
+     */
+    public int advance(long ms) {
+        final long targetMs = nowMs + ms;
+
+        int n = runUntilIdle();
+        while (true) {
+            final VirtualTimer timer = timers.peek();
+            if ((timer == null) || (timer.dueMs > targetMs)) { break; }
+
+            timers.poll();
+            if (timer.cancelled) { continue; }
+
+            nowMs = timer.dueMs;
+            timer.executor.execute(timer.task);
+            n += runUntilIdle();
+        }
+
+        nowMs = targetMs;
+
+        return n;
+    }
+}
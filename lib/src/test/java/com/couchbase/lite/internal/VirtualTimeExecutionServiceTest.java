@@ -0,0 +1,151 @@
+//
+// Copyright (c) 2020 Couchbase, Inc All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.couchbase.lite.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+
+public class VirtualTimeExecutionServiceTest {
+    private final VirtualTimeExecutionService service = new VirtualTimeExecutionService();
+    private final List<String> log = new ArrayList<>();
+
+    // Nothing runs until the test says so.  Then tasks run in order, including tasks they submit.
+    @Test
+    public void testRunUntilIdle() {
+        final Executor main = service.getMainExecutor();
+        final Executor concurrent = service.getConcurrentExecutor();
+
+        main.execute(() -> log.add("main-1"));
+        concurrent.execute(() -> {
+            log.add("concurrent");
+            main.execute(() -> log.add("main-3"));
+        });
+        main.execute(() -> log.add("main-2"));
+
+        assertEquals(0, log.size());
+        assertEquals(3, service.getPendingCount());
+
+        assertEquals(4, service.runUntilIdle());
+        assertEquals(Arrays.asList("main-1", "concurrent", "main-2", "main-3"), log);
+        assertEquals(0, service.getPendingCount());
+        assertEquals(0, service.now());
+    }
+
+    @Test
+    public void testSerialExecutorOrder() {
+        final Executor serial = service.getSerialExecutor();
+        for (int i = 0; i < 5; i++) {
+            final String id = "serial-" + i;
+            serial.execute(() -> log.add(id));
+        }
+
+        service.runUntilIdle();
+        assertEquals(Arrays.asList("serial-0", "serial-1", "serial-2", "serial-3", "serial-4"), log);
+    }
+
+    // Delayed tasks run in deadline order, ties in the order in which they were posted,
+    // with the clock set to each task's deadline.
+    @Test
+    public void testAdvanceOrder() {
+        final Executor main = service.getMainExecutor();
+        post(main, 300, "c");
+        post(main, 100, "a");
+        post(main, 200, "b1");
+        post(main, 200, "b2");
+
+        assertEquals(0, service.advance(99));
+        assertEquals(0, log.size());
+        assertEquals(99, service.now());
+
+        assertEquals(1, service.advance(1));
+        assertEquals(Arrays.asList("a@100"), log);
+
+        assertEquals(3, service.advance(1000));
+        assertEquals(Arrays.asList("a@100", "b1@200", "b2@200", "c@300"), log);
+        assertEquals(1100, service.now());
+    }
+
+    // A delayed task that posts another delayed task, due within the same advance, sees it run.
+    @Test
+    public void testChainedDelays() {
+        final Executor main = service.getMainExecutor();
+        service.postDelayedOnExecutor(
+            100,
+            main,
+            () -> {
+                log.add("first@" + service.now());
+                post(main, 50, "second");
+                post(main, 500, "third");
+            });
+
+        assertEquals(2, service.advance(200));
+        assertEquals(Arrays.asList("first@100", "second@150"), log);
+        assertEquals(1, service.getPendingCount());
+
+        service.advance(400);
+        assertEquals(Arrays.asList("first@100", "second@150", "third@600"), log);
+    }
+
+    // Ready tasks run before any delayed task, even one that is already due.
+    @Test
+    public void testReadyTasksRunFirst() {
+        final Executor main = service.getMainExecutor();
+        post(main, 0, "delayed");
+        main.execute(() -> log.add("ready"));
+
+        service.advance(0);
+        assertEquals(Arrays.asList("ready", "delayed@0"), log);
+    }
+
+    @Test
+    public void testCancel() {
+        final Executor main = service.getMainExecutor();
+        final ExecutionService.Cancellable cancelled = post(main, 100, "cancelled");
+        final ExecutionService.Cancellable alsoCancelled = post(main, 200, "also-cancelled");
+        post(main, 150, "kept");
+        assertEquals(3, service.getPendingCount());
+
+        cancelled.cancel();
+        service.cancelDelayedTask(alsoCancelled);
+        assertEquals(1, service.getPendingCount());
+
+        service.advance(1000);
+        assertEquals(Arrays.asList("kept@150"), log);
+        assertEquals(0, service.getPendingCount());
+    }
+
+    // Cancelling a task that has already run does nothing.
+    @Test
+    public void testCancelAfterRun() {
+        final ExecutionService.Cancellable task = post(service.getMainExecutor(), 10, "ran");
+        service.advance(10);
+        task.cancel();
+
+        assertEquals(Arrays.asList("ran@10"), log);
+        assertEquals(0, service.getPendingCount());
+    }
+
+    private ExecutionService.Cancellable post(Executor executor, long delayMs, String id) {
+        return service.postDelayedOnExecutor(delayMs, executor, () -> log.add(id + "@" + service.now()));
+    }
+}
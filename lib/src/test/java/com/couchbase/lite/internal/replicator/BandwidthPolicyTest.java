@@ -0,0 +1,96 @@
+//
+// Copyright (c) 2020 Couchbase, Inc All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.couchbase.lite.internal.replicator;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class BandwidthPolicyTest {
+    private static final long RATE = 1000; // one byte per ms
+    private static final long T0 = TimeUnit.SECONDS.toNanos(100);
+
+    @After
+    public void tearDown() {
+        for (NetworkClass networkClass: NetworkClass.values()) { BandwidthPolicy.setLimit(networkClass, 0); }
+    }
+
+    @Test
+    public void testHasLimits() {
+        assertFalse(BandwidthPolicy.hasLimits());
+
+        BandwidthPolicy.setLimit(NetworkClass.METERED, RATE);
+        assertTrue(BandwidthPolicy.hasLimits());
+        assertEquals(RATE, BandwidthPolicy.getLimit(NetworkClass.METERED));
+        assertEquals(0, BandwidthPolicy.getLimit(NetworkClass.UNMETERED));
+
+        BandwidthPolicy.setLimit(NetworkClass.METERED, 0);
+        assertFalse(BandwidthPolicy.hasLimits());
+    }
+
+    // A new bucket is full: the first second's worth of data goes out without waiting.
+    @Test
+    public void testStartsFull() {
+        final BandwidthPolicy.TokenBucket bucket = new BandwidthPolicy.TokenBucket();
+        assertEquals(0, bucket.take((int) RATE, RATE, T0));
+        assertEquals(1, bucket.take(1, RATE, T0));
+        assertEquals(100, bucket.take(99, RATE, T0));
+    }
+
+    @Test
+    public void testRefill() {
+        final BandwidthPolicy.TokenBucket bucket = new BandwidthPolicy.TokenBucket();
+        assertEquals(0, bucket.take((int) RATE, RATE, T0));
+
+        // 10ms later there are 10 tokens
+        assertEquals(0, bucket.take(10, RATE, T0 + ms(10)));
+        assertEquals(1, bucket.take(1, RATE, T0 + ms(10)));
+
+        // the bucket never holds more than a second's worth
+        assertEquals(0, bucket.take((int) RATE, RATE, T0 + ms(10000)));
+        assertEquals(1, bucket.take(1, RATE, T0 + ms(10000)));
+    }
+
+    // Time that does not add up to a whole token is not lost.
+    @Test
+    public void testKeepsFractionalTokens() {
+        final BandwidthPolicy.TokenBucket bucket = new BandwidthPolicy.TokenBucket();
+        assertEquals(0, bucket.take((int) RATE, RATE, T0));
+
+        // 1.7ms and then 3.4ms later: 3.4 tokens, not 1 + 1
+        final long step = TimeUnit.MICROSECONDS.toNanos(1700);
+        assertEquals(0, bucket.take(1, RATE, T0 + step));
+        assertEquals(0, bucket.take(2, RATE, T0 + (2 * step)));
+        assertEquals(1, bucket.take(1, RATE, T0 + (2 * step)));
+    }
+
+    // Changing the limit starts a new, full, bucket.
+    @Test
+    public void testNewLimit() {
+        final BandwidthPolicy.TokenBucket bucket = new BandwidthPolicy.TokenBucket();
+        assertEquals(0, bucket.take((int) RATE, RATE, T0));
+        assertEquals(0, bucket.take((int) (2 * RATE), 2 * RATE, T0));
+        assertEquals(1, bucket.take(2, 2 * RATE, T0));
+    }
+
+    private static long ms(long ms) { return TimeUnit.MILLISECONDS.toNanos(ms); }
+}
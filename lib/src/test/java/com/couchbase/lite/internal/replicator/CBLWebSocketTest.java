@@ -0,0 +1,115 @@
+//
+// Copyright (c) 2020 Couchbase, Inc All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.couchbase.lite.internal.replicator;
+
+import android.os.Build;
+import android.system.ErrnoException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.URISyntaxException;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+
+import org.junit.Test;
+
+import com.couchbase.lite.internal.core.C4Constants;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class CBLWebSocketTest {
+    private static final class TestWebSocket extends CBLWebSocket {
+        int closedDomain = -1;
+        int closedCode = -1;
+
+        TestWebSocket() throws GeneralSecurityException, URISyntaxException {
+            super(0L, "ws", "localhost", 4984, "/db", new HashMap<>());
+        }
+
+        @Override
+        protected void closed(int errorDomain, int errorCode, String message) {
+            closedDomain = errorDomain;
+            closedCode = errorCode;
+        }
+    }
+
+    @Test
+    public void testHandleCloseNoRouteToHost() throws GeneralSecurityException, URISyntaxException {
+        final TestWebSocket socket = new TestWebSocket();
+        assertTrue(socket.handleClose(new NoRouteToHostException()));
+        assertEquals(C4Constants.ErrorDomain.POSIX, socket.closedDomain);
+        assertEquals(113, socket.closedCode);
+    }
+
+    @Test
+    public void testHandleCloseSocketTimeout() throws GeneralSecurityException, URISyntaxException {
+        final TestWebSocket socket = new TestWebSocket();
+        assertTrue(socket.handleClose(new SocketTimeoutException()));
+        assertEquals(C4Constants.ErrorDomain.POSIX, socket.closedDomain);
+        assertEquals(110, socket.closedCode);
+    }
+
+    @Test
+    public void testHandleCloseUnrecognized() throws GeneralSecurityException, URISyntaxException {
+        final TestWebSocket socket = new TestWebSocket();
+        assertFalse(socket.handleClose(new IllegalStateException()));
+        assertEquals(-1, socket.closedCode);
+    }
+
+    @Test
+    public void testErrnoForExceptions() {
+        assertEquals(Integer.valueOf(113), getErrno(new NoRouteToHostException()));
+        assertEquals(Integer.valueOf(111), getErrno(new ConnectException()));
+        assertEquals(Integer.valueOf(104), getErrno(new SocketException()));
+        assertEquals(Integer.valueOf(104), getErrno(new EOFException()));
+        assertEquals(Integer.valueOf(110), getErrno(new SocketTimeoutException()));
+        assertNull(getErrno(new IOException()));
+    }
+
+    // An ErrnoException cause takes precedence over the type of the exception that wraps it
+    @Test
+    public void testErrnoForWrappedErrnoException() {
+        final ErrnoException errnoException = new ErrnoException("connect", 101);
+        final Throwable error = new SocketException("connect failed");
+        error.initCause(new IOException(errnoException));
+        assertEquals(Integer.valueOf(errnoException.errno), getErrno(error));
+    }
+
+    @Test
+    public void testErrnoForDeeplyWrappedErrnoException() {
+        Throwable error = new ErrnoException("connect", 101);
+        for (int i = 0; i < 5; i++) { error = new IOException(error); }
+        assertNull(getErrno(error));
+    }
+
+    // ErrnoException is not available before Lollipop
+    @Test
+    public void testErrnoBeforeLollipop() {
+        final Throwable error = new SocketException("connect failed");
+        error.initCause(new ErrnoException("connect", 101));
+        assertEquals(Integer.valueOf(104), CBLWebSocket.getErrno(error, Build.VERSION_CODES.LOLLIPOP - 1));
+    }
+
+    private Integer getErrno(Throwable error) { return CBLWebSocket.getErrno(error, Build.VERSION_CODES.LOLLIPOP); }
+}
@@ -0,0 +1,247 @@
+//
+// Copyright (c) 2020 Couchbase, Inc All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.couchbase.lite.internal.replicator;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.couchbase.lite.internal.CouchbaseLiteInternal;
+import com.couchbase.lite.internal.VirtualTimeExecutionService;
+
+import static org.junit.Assert.assertEquals;
+
+
+/**
+ * Replays recorded sequences of network events through the hub, in virtual time,
+ * and counts the notifications (and, so, the replicator restarts) that they cause.
+ */
+public class NetworkReachabilityHubTest {
+    private static final long DEBOUNCE_MS = 500;
+    private static final long STAGGER_MS = 250;
+    private static final int CONCURRENCY = 4;
+
+    // A network whose state is set by the test.
+    private static final class FakeNetwork implements NetworkReachabilityHub.NetworkMonitor {
+        private Runnable onEvent;
+        private boolean online;
+        private String id;
+        private int starts;
+        private int stops;
+
+        @Override
+        public void start(@NonNull Runnable onEvent) {
+            this.onEvent = onEvent;
+            starts++;
+        }
+
+        @Override
+        public void stop() {
+            onEvent = null;
+            stops++;
+        }
+
+        @Override
+        public boolean isOnline() { return online; }
+
+        @Nullable
+        @Override
+        public String getNetworkId() { return id; }
+
+        // "off", or the id of the network to which the device is connected
+        void set(@NonNull String state) {
+            online = !"off".equals(state);
+            id = (online) ? state : null;
+            if (onEvent != null) { onEvent.run(); }
+        }
+    }
+
+    // Records its notifications: "on@t" or "off@t"
+    private final class Recorder implements NetworkReachabilityHub.Subscriber {
+        private final List<String> events = new ArrayList<>();
+
+        @Override
+        public void onNetworkChanged(boolean online) { events.add(((online) ? "on@" : "off@") + service.now()); }
+
+        int getRestarts() {
+            int n = 0;
+            for (String event: events) {
+                if (event.startsWith("on@")) { n++; }
+            }
+            return n;
+        }
+    }
+
+    private VirtualTimeExecutionService service;
+    private FakeNetwork network;
+    private NetworkReachabilityHub hub;
+
+    @Before
+    public void setUp() {
+        service = new VirtualTimeExecutionService();
+        CouchbaseLiteInternal.setExecutionService(service);
+
+        NetworkReachabilityHub.setDebounceMs(DEBOUNCE_MS);
+        NetworkReachabilityHub.setReconnectStaggerMs(STAGGER_MS);
+        NetworkReachabilityHub.setReconnectConcurrency(CONCURRENCY);
+
+        network = new FakeNetwork();
+        network.set("wifi-1");
+        hub = new NetworkReachabilityHub(network);
+    }
+
+    @After
+    public void tearDown() { CouchbaseLiteInternal.setExecutionService(null); }
+
+    // A new subscriber learns the current state once the network has been stable for the debounce window.
+    @Test
+    public void testInitialState() {
+        final Recorder recorder = subscribe(0);
+        replay();
+
+        assertEquals(Arrays.asList("on@500"), recorder.events);
+        assertEquals(1, network.starts);
+    }
+
+    // A drop shorter than the debounce window is invisible.
+    @Test
+    public void testBriefDrop() {
+        final Recorder recorder = subscribe(0);
+        replay("1000:off", "1200:wifi-1");
+
+        assertEquals(Arrays.asList("on@500"), recorder.events);
+    }
+
+    // A network that flaps for seconds causes no restarts if it ends where it started
+    // and a single notification if it does not.
+    @Test
+    public void testFlapping() {
+        final Recorder recorder = subscribe(0);
+        replay(
+            "1000:off", "1200:wifi-1", "1400:off", "1600:wifi-1", "1800:off", "2000:wifi-1",
+            "2200:off", "2400:wifi-1", "2600:off", "2800:wifi-1", "3000:off", "3200:wifi-1",
+            "3400:off");
+
+        assertEquals(Arrays.asList("on@500", "off@3900"), recorder.events);
+        assertEquals(1, recorder.getRestarts());
+    }
+
+    // A real outage is reported both ways.
+    @Test
+    public void testOutage() {
+        final Recorder recorder = subscribe(0);
+        replay("1000:off", "4000:wifi-1");
+
+        assertEquals(Arrays.asList("on@500", "off@1500", "on@4500"), recorder.events);
+        assertEquals(2, recorder.getRestarts());
+    }
+
+    // Moving to a different network is a restart, even if the device is never offline.
+    @Test
+    public void testNetworkSwitch() {
+        final Recorder recorder = subscribe(0);
+        replay("1000:cell-1");
+
+        assertEquals(Arrays.asList("on@500", "on@1500"), recorder.events);
+    }
+
+    // A hand-off with a brief gap is a single restart, not a drop and a restart.
+    @Test
+    public void testHandOff() {
+        final Recorder recorder = subscribe(0);
+        replay("1000:off", "1100:cell-1", "1150:cell-1");
+
+        assertEquals(Arrays.asList("on@500", "on@1650"), recorder.events);
+    }
+
+    // Reconnections are staggered, highest priority first.  Loss of the network is reported to everyone at once.
+    @Test
+    public void testStaggeredReconnect() {
+        final Recorder[] recorders = new Recorder[10];
+        for (int i = 0; i < recorders.length; i++) { recorders[i] = subscribe(i); }
+        replay("1000:off", "4000:wifi-1");
+
+        for (int i = 0; i < recorders.length; i++) {
+            // recorders[9] has the highest priority
+            final long reconnectAt = 4500 + (((recorders.length - 1 - i) / CONCURRENCY) * STAGGER_MS);
+            assertEquals(
+                Arrays.asList(
+                    "on@" + (500 + (((recorders.length - 1 - i) / CONCURRENCY) * STAGGER_MS)),
+                    "off@1500",
+                    "on@" + reconnectAt),
+                recorders[i].events);
+        }
+    }
+
+    // A switch to a different network during a staggered reconnect supersedes the notifications
+    // not yet delivered for the old network: no subscriber restarts twice.
+    @Test
+    public void testSwitchDuringReconnect() {
+        NetworkReachabilityHub.setReconnectStaggerMs(1000);
+
+        final Recorder[] recorders = new Recorder[10];
+        for (int i = 0; i < recorders.length; i++) { recorders[i] = subscribe(i); }
+        replay();
+        replay("11000:off", "14000:wifi-1", "14600:cell-1");
+
+        for (int i = 0; i < recorders.length; i++) {
+            final int group = (recorders.length - 1 - i) / CONCURRENCY;
+            final List<String> expected = new ArrayList<>();
+            expected.add("on@" + (500 + (group * 1000)));
+            expected.add("off@11500");
+            // only the first group was notified about the old network, before the switch
+            if (group == 0) { expected.add("on@14500"); }
+            expected.add("on@" + (15100 + (group * 1000)));
+            assertEquals(expected, recorders[i].events);
+        }
+    }
+
+    // The hub listens only while it has subscribers.
+    @Test
+    public void testUnsubscribe() {
+        final Recorder recorder = subscribe(0);
+        replay("1000:off");
+        hub.unsubscribe(recorder);
+        replay("2000:wifi-1");
+
+        assertEquals(Arrays.asList("on@500", "off@1500"), recorder.events);
+        assertEquals(1, network.stops);
+    }
+
+    @NonNull
+    private Recorder subscribe(int priority) {
+        final Recorder recorder = new Recorder();
+        hub.subscribe(recorder, priority);
+        return recorder;
+    }
+
+    // Each event is "time:state", time in ms, state as for FakeNetwork.set.  Times must be increasing.
+    private void replay(@NonNull String... events) {
+        for (String event: events) {
+            final int sep = event.indexOf(':');
+            service.advance(Long.parseLong(event.substring(0, sep)) - service.now());
+            network.set(event.substring(sep + 1));
+        }
+        service.advance(10000 - (service.now() % 10000));
+    }
+}
@@ -0,0 +1,111 @@
+//
+// Copyright (c) 2020 Couchbase, Inc All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.couchbase.lite.internal.replicator;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+public class TransportStatsTest {
+    @Test
+    public void testCounts() {
+        final TransportStats stats = TransportStats.forConnection("ws://counts:4984/db");
+        assertSame(stats, TransportStats.getStats(stats.getId()));
+        assertFalse(stats.wasOpened());
+
+        stats.opened();
+        stats.sent(0);
+        stats.sent(100);
+        stats.sent(1000);
+        stats.received(300);
+        stats.received(600);
+        stats.receiveAcknowledged(500);
+        stats.receiveAcknowledged(400);
+        stats.closed();
+
+        assertTrue(stats.wasOpened());
+        assertTrue(stats.isClosed());
+        assertEquals(3, stats.getFramesSent());
+        assertEquals(1100, stats.getBytesSent());
+        assertEquals(2, stats.getFramesReceived());
+        assertEquals(900, stats.getBytesReceived());
+        assertEquals(2, stats.getReceiveAckCount());
+        assertEquals(900, stats.getBytesConsumed());
+
+        final long[] sent = stats.getSentSizeHistogram();
+        assertEquals(1, sent[0]);
+        assertEquals(1, sent[7]);
+        assertEquals(1, sent[10]);
+
+        final long[] received = stats.getReceivedSizeHistogram();
+        assertEquals(1, received[9]);
+        assertEquals(1, received[10]);
+
+        assertSame(stats, TransportStats.removeStats(stats.getId()));
+        assertNull(TransportStats.getStats(stats.getId()));
+    }
+
+    // Two connections to the same endpoint (e.g., a push and a pull replicator) do not share statistics.
+    @Test
+    public void testConnectionsToSameEndpoint() {
+        final String url = "ws://shared:4984/db";
+        final TransportStats push = TransportStats.forConnection(url);
+        final TransportStats pull = TransportStats.forConnection(url);
+        assertNotSame(push, pull);
+
+        push.sent(100);
+        pull.received(200);
+
+        assertEquals(100, push.getBytesSent());
+        assertEquals(0, push.getBytesReceived());
+        assertEquals(0, pull.getBytesSent());
+        assertEquals(200, pull.getBytesReceived());
+
+        final List<TransportStats> stats = TransportStats.getStatsForEndpoint(url);
+        assertEquals(2, stats.size());
+        assertSame(push, stats.get(0));
+        assertSame(pull, stats.get(1));
+
+        TransportStats.removeStats(push.getId());
+        TransportStats.removeStats(pull.getId());
+    }
+
+    // When there are too many, the statistics for the oldest closed connection are discarded first
+    @Test
+    public void testEviction() {
+        final TransportStats oldest = TransportStats.forConnection("ws://oldest:4984/db");
+        final TransportStats closed = TransportStats.forConnection("ws://closed:4984/db");
+        closed.closed();
+
+        for (int i = 0; i < 63; i++) { TransportStats.forConnection("ws://endpoint-" + i + ":4984/db"); }
+        assertNull(TransportStats.getStats(closed.getId()));
+        assertNotNull(TransportStats.getStats(oldest.getId()));
+
+        final TransportStats newest = TransportStats.forConnection("ws://newest:4984/db");
+        assertNull(TransportStats.getStats(oldest.getId()));
+        assertNotNull(TransportStats.getStats(newest.getId()));
+        assertEquals(64, TransportStats.getAllStats().size());
+    }
+}